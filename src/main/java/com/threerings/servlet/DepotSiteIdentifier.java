@@ -8,9 +8,13 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jakarta.servlet.http.HttpServletRequest;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
@@ -18,25 +22,28 @@ import com.samskivert.depot.PersistenceContext;
 import com.samskivert.servlet.Site;
 import com.samskivert.servlet.SiteIdentifier;
 import com.samskivert.util.ArrayUtil;
+import com.samskivert.util.Interval;
+import com.samskivert.util.RunQueue;
 
 import com.threerings.servlet.persist.DomainRecord;
 import com.threerings.servlet.persist.SiteIdentifierRepository;
 import com.threerings.servlet.persist.SiteRecord;
 
+import static com.threerings.user.Log.log;
+
 /**
  * Accomplishes the process of site identification based on a mapping from domains (e.g.
  * samskivert.com) to site identifiers that is maintained in a depot database table.
  *
  * <p> There are two tables, one that maps domains to site identifiers and another that maps site
- * identifiers to site strings. These are both loaded at construct time and refreshed periodically
- * in the course of normal operation.
+ * identifiers to site strings. These are both loaded at construct time and refreshed roughly every
+ * 15 minutes (with a little jitter so that a fleet of servers doesn't reload in lockstep) by an
+ * interval that runs off of the request threads.
  *
- * <p> Note that any of the calls to identify, lookup or enumerate site information can result in
- * the sites table being refreshed from the database which will take relatively much longer than
- * the simple hashtable lookup that the operations normally require. However, this happens only
- * once every 15 minutes and the circumstances in which the site identifier are normally used can
- * generally accomodate the extra 100 milliseconds or so that it is likely to take to reload the
- * (tiny) sites and domains tables from the database.
+ * <p> The loaded data is published as a single immutable snapshot, so identifying, looking up or
+ * enumerating sites never touches the database. If a refresh fails, the previous snapshot remains
+ * in place and the failure is counted (see {@link #getRefreshFailures}). Tools that add domains
+ * via some other route can call {@link #refreshSiteData} to publish them immediately.
  */
 public class DepotSiteIdentifier
     implements SiteIdentifier
@@ -65,39 +72,45 @@ public class DepotSiteIdentifier
      */
     public DepotSiteIdentifier (
             PersistenceContext pctx, int defaultSiteId, String defaultSiteString)
+    {
+        this(pctx, defaultSiteId, defaultSiteString, null);
+    }
+
+    /**
+     * Creates an identifier as above which will refresh its site data on the supplied run queue
+     * rather than on the interval thread.
+     */
+    public DepotSiteIdentifier (PersistenceContext pctx, int defaultSiteId,
+                                String defaultSiteString, RunQueue refreshQueue)
     {
         _repo = new SiteIdentifierRepository(pctx);
-        refreshSiteData();
         _defaultSiteId = defaultSiteId;
         _defaultSiteString = defaultSiteString;
+        _data = loadSiteData();
+
+        _refresher = new Interval(refreshQueue == null ? Interval.RUN_DIRECT : refreshQueue) {
+            @Override public void expired () {
+                refreshSiteData();
+                scheduleRefresh();
+            }
+        };
+        scheduleRefresh();
     }
 
     // documentation inherited
     public int identifySite (HttpServletRequest req)
     {
-        checkReloadSites();
-        String serverName = req.getServerName();
-
-        // scan for the mapping that matches the specified domain
-        int msize = _mappings.size();
-        for (int i = 0; i < msize; i++) {
-            SiteMapping mapping = _mappings.get(i);
-            if (serverName.endsWith(mapping.domain)) {
-                return mapping.siteId;
-            }
-        }
-
-        // if we matched nothing, return the default id
-        return _defaultSiteId;
+        // find the most specific domain that matches, falling back to the default id
+        return _data.matcher.match(req.getServerName(), _defaultSiteId);
     }
 
     // documentation inherited
     public String getSiteString (int siteId)
     {
-        checkReloadSites();
-        Site site = _sitesById.get(siteId);
+        SiteData data = _data;
+        Site site = data.sitesById.get(siteId);
         if (site == null) {
-            site = _sitesById.get(_defaultSiteId);
+            site = data.sitesById.get(_defaultSiteId);
         }
         return (site == null) ? _defaultSiteString : site.siteString;
     }
@@ -105,16 +118,14 @@ public class DepotSiteIdentifier
     // documentation inherited
     public int getSiteId (String siteString)
     {
-        checkReloadSites();
-        Site site = _sitesByString.get(siteString);
+        Site site = _data.sitesByString.get(siteString);
         return (site == null) ? _defaultSiteId : site.siteId;
     }
 
     // documentation inherited from interface
     public Iterator<Site> enumerateSites ()
     {
-        checkReloadSites();
-        return _sitesById.values().iterator();
+        return _data.sitesById.values().iterator();
     }
 
     /**
@@ -128,23 +139,21 @@ public class DepotSiteIdentifier
     /**
      * Insert a new site into the site table and into this mapping.
      */
-    public Site insertNewSite (String siteString, int siteId)
+    public synchronized Site insertNewSite (String siteString, int siteId)
     {
-        if (_sitesByString.containsKey(siteString) ||
-                (siteId > 0 && _sitesById.containsKey(siteId))) {
+        SiteData data = _data;
+        if (data.sitesByString.containsKey(siteString) ||
+                (siteId > 0 && data.sitesById.containsKey(siteId))) {
             return null;
         }
 
         // add it to the db
         Site site = _repo.insertNewSite(siteString, siteId);
 
-        // add it to our two mapping tables, taking care to avoid causing enumerateSites() to choke
-        Map<String, Site> newStrings = Maps.newHashMap(_sitesByString);
-        Map<Integer, Site> newIds = Maps.newHashMap(_sitesById);
-        newIds.put(site.siteId, site);
-        newStrings.put(site.siteString, site);
-        _sitesByString = newStrings;
-        _sitesById = newIds;
+        // publish a new snapshot containing the new site
+        Map<Integer, Site> sites = Maps.newHashMap(data.sitesById);
+        sites.put(site.siteId, site);
+        _data = new SiteData(sites, data.mappings);
 
         return site;
     }
@@ -152,12 +161,11 @@ public class DepotSiteIdentifier
     /**
      * Insert a new domain into the domain table and into this mapping.
      */
-    public void insertNewDomain (String domain, int siteId)
+    public synchronized void insertNewDomain (String domain, int siteId)
     {
         // scan for the mapping that matches the specified domain
-        int msize = _mappings.size();
-        for (int i = 0; i < msize; i++) {
-            SiteMapping mapping = _mappings.get(i);
+        SiteData data = _data;
+        for (SiteMapping mapping : data.mappings) {
             if (mapping.domain.equals(domain)) {
                 return;
             }
@@ -166,57 +174,117 @@ public class DepotSiteIdentifier
         // add it to the db
         _repo.insertNewDomain(domain, siteId);
 
-        // add it to our two mapping table, taking care to avoid causing enumerateSites() to choke
-        List<SiteMapping> mappings = Lists.newArrayList();
-        mappings.addAll(_mappings);
+        // publish a new snapshot containing the new domain
+        List<SiteMapping> mappings = Lists.newArrayList(data.mappings);
         mappings.add(new SiteMapping(siteId, domain));
-
-        Collections.sort(mappings, SiteMapping.BY_SPECIFICITY);
-        _mappings = mappings;
+        _data = new SiteData(data.sitesById, mappings);
     }
 
     /**
-     * Checks to see if we should reload our sites information from the sites table.
+     * Reloads the site information from the database and publishes it. If the reload fails, the
+     * previously loaded information remains in effect.
+     *
+     * @return true if the data was refreshed, false if the reload failed.
      */
-    protected void checkReloadSites ()
+    public synchronized boolean refreshSiteData ()
     {
-        long now = System.currentTimeMillis();
-        boolean reload = false;
-        synchronized (this) {
-            reload = (now - _lastReload > RELOAD_INTERVAL);
-            if (reload) {
-                _lastReload = now;
-            }
-        }
-        if (reload) {
-            refreshSiteData();
+        // we hold our monitor while loading so that a concurrent insert is not clobbered by data
+        // loaded before it was made; request threads never take this lock
+        try {
+            _data = loadSiteData();
+            return true;
+        } catch (Exception e) {
+            int failures = _refreshFailures.incrementAndGet();
+            log.warning("Failed to refresh site data", "failures", failures, e);
+            return false;
         }
     }
 
     /**
-     * Refreshes the cached site information.
+     * Returns the number of times that refreshing our site data has failed.
+     */
+    public int getRefreshFailures ()
+    {
+        return _refreshFailures.get();
+    }
+
+    /**
+     * Stops the periodic refreshing of our site data.
      */
-    public void refreshSiteData ()
+    public void shutdown ()
     {
-        List<SiteRecord> siteRecords = _repo.loadSites();
-        Map<Integer,Site> sites = Maps.newHashMap();
-        Map<String,Site> strings = Maps.newHashMap();
-        for (SiteRecord record : siteRecords) {
-            Site site = record.toSite();
-            sites.put(record.siteId, site);
-            strings.put(record.siteString, site);
+        _refresher.cancel();
+    }
+
+    /**
+     * Loads the site and domain tables from the database.
+     */
+    protected SiteData loadSiteData ()
+    {
+        Map<Integer, Site> sites = Maps.newHashMap();
+        for (SiteRecord record : _repo.loadSites()) {
+            sites.put(record.siteId, record.toSite());
         }
-        _sitesById = sites;
-        _sitesByString = strings;
 
-        List<DomainRecord> domainRecords = _repo.loadDomains();
         List<SiteMapping> mappings = Lists.newArrayList();
-        for (DomainRecord record : domainRecords) {
+        for (DomainRecord record : _repo.loadDomains()) {
             mappings.add(new SiteMapping(record.siteId, record.domain));
         }
 
-        Collections.sort(mappings, SiteMapping.BY_SPECIFICITY);
-        _mappings = mappings;
+        return new SiteData(sites, mappings);
+    }
+
+    /**
+     * Schedules our next refresh, jittered by up to {@link #RELOAD_JITTER} in either direction.
+     */
+    protected void scheduleRefresh ()
+    {
+        long jitter = ThreadLocalRandom.current().nextLong(-RELOAD_JITTER, RELOAD_JITTER + 1);
+        _refresher.schedule(RELOAD_INTERVAL + jitter);
+    }
+
+    /**
+     * An immutable snapshot of our site and domain data.
+     */
+    protected static class SiteData
+    {
+        /** The mapping from integer site identifiers to sites. */
+        public final Map<Integer, Site> sitesById;
+
+        /** The mapping from string site identifiers to sites. */
+        public final Map<String, Site> sitesByString;
+
+        /** The domain to site identifier mappings ordered by {@link SiteMapping#BY_SPECIFICITY}. */
+        public final List<SiteMapping> mappings;
+
+        /** Matches server names against {@link #mappings}. */
+        public final DomainMatcher matcher;
+
+        public SiteData (Map<Integer, Site> sites, List<SiteMapping> mappings) {
+            // site strings are neither unique nor required, so skip the missing ones and let the
+            // last of any duplicates win rather than failing to load any site data at all
+            Map<String, Site> strings = Maps.newHashMap();
+            for (Site site : sites.values()) {
+                if (site.siteString == null) {
+                    continue;
+                }
+                Site prev = strings.put(site.siteString, site);
+                if (prev != null) {
+                    log.warning("Duplicate site string", "siteString", site.siteString,
+                                "siteId", site.siteId, "prevSiteId", prev.siteId);
+                }
+            }
+            List<SiteMapping> sorted = Lists.newArrayList(mappings);
+            Collections.sort(sorted, SiteMapping.BY_SPECIFICITY);
+
+            this.sitesById = ImmutableMap.copyOf(sites);
+            this.sitesByString = Collections.unmodifiableMap(strings);
+            this.mappings = ImmutableList.copyOf(sorted);
+            this.matcher = new DomainMatcher();
+            for (SiteMapping mapping : this.mappings) {
+                this.matcher.add(mapping.domain, mapping.siteId);
+            }
+        }
     }
 
     /**
@@ -264,20 +332,19 @@ public class DepotSiteIdentifier
     /** The site string to return if we cannot identify the site from our table data. */
     protected String _defaultSiteString;
 
-    /** The list of domain to site identifier mappings ordered from most specific domain to least
-     * specific. */
-    protected volatile List<SiteMapping> _mappings = Lists.newArrayList();
-
-    /** The mapping from integer site identifiers to string site identifiers. */
-    protected volatile Map<Integer, Site> _sitesById = Maps.newHashMap();
-
-    /** The mapping from string site identifiers to integer site identifiers. */
-    protected volatile Map<String, Site> _sitesByString = Maps.newHashMap();
+    /** Our most recently loaded site data. */
+    protected volatile SiteData _data;
 
     /** Used to periodically reload our site data. */
-    protected long _lastReload;
+    protected Interval _refresher;
+
+    /** The number of times that reloading our site data has failed. */
+    protected AtomicInteger _refreshFailures = new AtomicInteger();
 
     /** Reload our site data every 15 minutes. */
     protected static final long RELOAD_INTERVAL = 15 * 60 * 1000L;
+
+    /** The maximum amount by which we randomly shift each reload. */
+    protected static final long RELOAD_JITTER = 60 * 1000L;
 }
 
@@ -0,0 +1,140 @@
+//
+// $Id$
+
+package com.threerings.servlet;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Maps server names to site identifiers by domain suffix. The domains are stored in a trie keyed
+ * on their characters in reverse order, so a server name is matched by walking it once from its
+ * last character to its first, and the most specific (longest) domain that is a suffix of the
+ * server name wins. A small cache of recently matched server names saves even that walk for the
+ * handful of host names that make up most of our traffic.
+ *
+ * <p> A matcher is not modified once it has been populated, so it can be shared between threads
+ * and replaced wholesale when the domain mappings change.
+ */
+public class DomainMatcher
+{
+    /**
+     * Adds a domain to this matcher. If the same domain is added more than once, the first
+     * mapping wins. Matchers must be fully populated before they are shared with other threads.
+     */
+    public void add (String domain, int siteId)
+    {
+        Node node = _root;
+        for (int ii = domain.length() - 1; ii >= 0; ii--) {
+            node = node.getOrCreate(domain.charAt(ii));
+        }
+        if (!node.mapped) {
+            node.mapped = true;
+            node.siteId = siteId;
+        }
+    }
+
+    /**
+     * Returns the site id mapped to the most specific domain that is a suffix of the supplied
+     * server name, or {@code defaultSiteId} if no domain matches.
+     */
+    public int match (String serverName, int defaultSiteId)
+    {
+        Integer siteId = _recent.getIfPresent(serverName);
+        if (siteId == null) {
+            siteId = lookup(serverName);
+            _recent.put(serverName, siteId);
+        }
+        return (siteId == NO_MATCH) ? defaultSiteId : siteId;
+    }
+
+    /**
+     * Walks the trie to find the most specific domain that matches the supplied server name.
+     *
+     * @return the matching site id or {@link #NO_MATCH}.
+     */
+    protected int lookup (String serverName)
+    {
+        int siteId = NO_MATCH;
+        Node node = _root;
+        for (int ii = serverName.length() - 1; ii >= 0 && node != null; ii--) {
+            node = node.get(serverName.charAt(ii));
+            if (node != null && node.mapped) {
+                siteId = node.siteId;
+            }
+        }
+        return siteId;
+    }
+
+    /** A node in our reversed domain trie. */
+    protected static class Node
+    {
+        /** True if a domain ends at this node. */
+        public boolean mapped;
+
+        /** The site id of the domain that ends at this node, if {@link #mapped}. */
+        public int siteId;
+
+        /** Returns the child for the supplied character, or null. */
+        public Node get (char c) {
+            int idx = indexOf(c);
+            return (idx < 0) ? null : _kids[idx];
+        }
+
+        /** Returns the child for the supplied character, creating it if necessary. */
+        public Node getOrCreate (char c) {
+            int idx = indexOf(c);
+            if (idx >= 0) {
+                return _kids[idx];
+            }
+
+            // insert the new child such that our keys remain sorted
+            int ipos = -(idx + 1), count = _keys.length;
+            char[] keys = new char[count + 1];
+            Node[] kids = new Node[count + 1];
+            System.arraycopy(_keys, 0, keys, 0, ipos);
+            System.arraycopy(_kids, 0, kids, 0, ipos);
+            System.arraycopy(_keys, ipos, keys, ipos + 1, count - ipos);
+            System.arraycopy(_kids, ipos, kids, ipos + 1, count - ipos);
+            keys[ipos] = c;
+            kids[ipos] = new Node();
+            _keys = keys;
+            _kids = kids;
+            return kids[ipos];
+        }
+
+        /** Binary searches our keys for the supplied character. */
+        protected int indexOf (char c) {
+            int low = 0, high = _keys.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                char key = _keys[mid];
+                if (key < c) {
+                    low = mid + 1;
+                } else if (key > c) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+        /** The characters of our children, sorted, and the children themselves. */
+        protected char[] _keys = new char[0];
+        protected Node[] _kids = new Node[0];
+    }
+
+    /** The root of our reversed domain trie. */
+    protected Node _root = new Node();
+
+    /** Recently matched server names. */
+    protected Cache<String, Integer> _recent =
+        CacheBuilder.newBuilder().maximumSize(RECENT_CACHE_SIZE).build();
+
+    /** Used in our recent cache for server names that matched no domain. */
+    protected static final int NO_MATCH = Integer.MIN_VALUE;
+
+    /** The number of recently matched server names that we remember. */
+    protected static final int RECENT_CACHE_SIZE = 256;
+}
@@ -14,11 +14,10 @@ import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import com.google.common.base.Joiner;
-import com.google.common.collect.Maps;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.samskivert.io.PersistenceException;
 import com.samskivert.jdbc.ConnectionProvider;
@@ -83,8 +82,10 @@ public class AccountActionRepository extends JORARepository
     }
 
     /**
-     * Return the list of actions that have not yet been processed by the specified server.
-     * Returns all actions if no server name is specified.
+     * Return the list of actions that have not yet been processed by the specified server,
+     * ordered by action id. Returns all actions if no server name is specified. The actions are
+     * loaded with a single query that anti-joins against the processed actions table, so its cost
+     * does not depend on how many actions the server has already processed.
      *
      * @param maxActions the maximum number of actions to return.
      *
@@ -100,11 +101,18 @@ public class AccountActionRepository extends JORARepository
             return new ArrayList<AccountAction>();
         }
 
-        // look ma, subselects
-        String where = "where ACTION_ID NOT IN " +
-            "(select ACTION_ID from PROCESSED_ACTIONS " +
-            "where SERVER = '" + server + "') limit " + maxActions;
-        List<AccountAction> list = loadAll(_atable, where);
+        // load at most maxActions actions for which no processed record exists for this server
+        StringBuilder where = new StringBuilder();
+        if (!StringUtil.isBlank(server)) {
+            where.append("where not exists (select 1 from PROCESSED_ACTIONS P ")
+                .append("where P.ACTION_ID = ").append(TABLE).append(".ACTION_ID ")
+                .append("and P.SERVER = ").append(JDBCUtil.escape(server)).append(") ");
+        }
+        where.append("order by ACTION_ID");
+        if (maxActions < Integer.MAX_VALUE) {
+            where.append(" limit ").append(maxActions);
+        }
+        List<AccountAction> list = loadAll(_atable, where.toString());
 
         // unjigger the account names
         for (AccountAction action : list) {
@@ -203,14 +211,42 @@ public class AccountActionRepository extends JORARepository
     }
 
     /**
-     * Batch update a list of actions.
+     * Batch update a list of actions. The processed records are inserted in one transaction using
+     * multi-row inserts of at most {@link #INSERT_BATCH_SIZE} rows each.
      */
-    public void updateActions (List<AccountAction> actions, String server)
+    public void updateActions (final List<AccountAction> actions, final String server)
         throws PersistenceException
     {
-        for (int ii = 0, ll = actions.size(); ii < ll; ii++) {
-            noteProcessed(actions.get(ii).actionId, server);
+        if (!_active || actions.isEmpty()) {
+            return;
         }
+
+        executeUpdate(new Operation<Void>() {
+            public Void invoke (Connection conn, DatabaseLiaison liaison)
+                throws SQLException, PersistenceException
+            {
+                for (List<AccountAction> batch : Lists.partition(actions, INSERT_BATCH_SIZE)) {
+                    StringBuilder query = new StringBuilder(
+                        "insert into PROCESSED_ACTIONS (ACTION_ID, SERVER) values ");
+                    for (int ii = 0, ll = batch.size(); ii < ll; ii++) {
+                        query.append(ii == 0 ? "(?, ?)" : ", (?, ?)");
+                    }
+                    PreparedStatement stmt = null;
+                    try {
+                        stmt = conn.prepareStatement(query.toString());
+                        int idx = 1;
+                        for (AccountAction action : batch) {
+                            stmt.setInt(idx++, action.actionId);
+                            stmt.setString(idx++, server);
+                        }
+                        stmt.executeUpdate();
+                    } finally {
+                        JDBCUtil.close(stmt);
+                    }
+                }
+                return null;
+            }
+        });
     }
 
     /**
@@ -266,54 +302,70 @@ public class AccountActionRepository extends JORARepository
      * Prunes actions that have been processed by all registered servers to keep the actions table
      * small. This method need not be called by hand as it is called automatically by
      * {@link #getActions(String,int)}, but no more frequently than once an hour.
+     *
+     * <p> The fully processed actions are found with a grouped count of their processed records
+     * and deleted, along with those records, in chunks of at most {@link #PRUNE_CHUNK_SIZE}. As
+     * this runs on the thread that called {@link #getActions(String,int)}, a run stops after
+     * {@link #PRUNE_BUDGET_MILLIS}, leaving any remaining actions to the next run.
+     *
+     * @return the number of actions that were pruned.
      */
-    public void pruneActions ()
+    public int pruneActions ()
         throws PersistenceException
     {
         final Set<String> servers = loadActionServers();
-        executeUpdate(new Operation<Void>() {
-            public Void invoke (Connection conn, DatabaseLiaison liaison)
-                throws SQLException, PersistenceException
-            {
-                Map<Integer,Set<String>> procmap = Maps.newHashMap();
-                ArrayIntSet actids = new ArrayIntSet();
-                Statement stmt = conn.createStatement();
-                try {
-                    // determine which servers have processed which actions
-                    ResultSet rs = stmt.executeQuery(
-                        "select ACTION_ID, SERVER from PROCESSED_ACTIONS");
-                    while (rs.next()) {
-                        Integer actionId = (Integer)rs.getObject(1);
-                        Set<String> procset = procmap.get(actionId);
-                        if (procset == null) {
-                            procmap.put(actionId, procset = Sets.newHashSet());
-                        }
-                        procset.add(rs.getString(2));
-                    }
+        if (servers.isEmpty()) {
+            return 0;
+        }
 
-                    // determine which of those have been fully processed
-                    for (Map.Entry<Integer,Set<String>> entry : procmap.entrySet()) {
-                        Integer actionId = entry.getKey();
-                        Set<String> procset = entry.getValue();
-                        if (procset.containsAll(servers)) {
-                            actids.add(actionId.intValue());
+        final List<String> quoted = Lists.newArrayList();
+        for (String server : servers) {
+            quoted.add(JDBCUtil.escape(server));
+        }
+        long start = System.currentTimeMillis();
+        int pruned = 0;
+        while (true) {
+            int count = executeUpdate(new Operation<Integer>() {
+                public Integer invoke (Connection conn, DatabaseLiaison liaison)
+                    throws SQLException, PersistenceException
+                {
+                    ArrayIntSet actids = new ArrayIntSet();
+                    Statement stmt = conn.createStatement();
+                    try {
+                        // find a chunk of actions that have been processed by every server
+                        ResultSet rs = stmt.executeQuery(
+                            "select ACTION_ID from PROCESSED_ACTIONS " +
+                            "where SERVER in (" + Joiner.on(",").join(quoted) + ") " +
+                            "group by ACTION_ID having count(distinct SERVER) = " +
+                            servers.size() + " limit " + PRUNE_CHUNK_SIZE);
+                        while (rs.next()) {
+                            actids.add(rs.getInt(1));
                         }
-                    }
 
-                    // now wipe out the actions (and processed entries) for
-                    // all actions that have been fully processed
-                    if (actids.size() > 0) {
-                        String where = "where ACTION_ID in " +
-                            "(" + Joiner.on(",").join(actids) + ")";
-                        stmt.executeUpdate("delete from ACCOUNT_ACTIONS " + where);
-                        stmt.executeUpdate("delete from PROCESSED_ACTIONS " + where);
+                        // now wipe out those actions and their processed entries
+                        if (actids.size() > 0) {
+                            String where = "where ACTION_ID in " +
+                                "(" + Joiner.on(",").join(actids) + ")";
+                            stmt.executeUpdate("delete from ACCOUNT_ACTIONS " + where);
+                            stmt.executeUpdate("delete from PROCESSED_ACTIONS " + where);
+                        }
+                    } finally {
+                        JDBCUtil.close(stmt);
                     }
-                } finally {
-                    JDBCUtil.close(stmt);
+                    return actids.size();
                 }
-                return null;
+            });
+            pruned += count;
+            if (count < PRUNE_CHUNK_SIZE ||
+                System.currentTimeMillis() - start >= PRUNE_BUDGET_MILLIS) {
+                break;
             }
-        });
+        }
+
+        if (pruned > 0) {
+            log.info("Pruned processed actions", "pruned", pruned);
+        }
+        return pruned;
     }
 
     /**
@@ -396,6 +448,15 @@ public class AccountActionRepository extends JORARepository
     /** We automatically prune the actions table once an hour. */
     protected static final long ACTION_PRUNE_INTERVAL = 60 * 60 * 1000L;
 
+    /** The maximum number of rows we insert with a single statement. */
+    protected static final int INSERT_BATCH_SIZE = 500;
+
+    /** The maximum number of actions we prune with a single statement. */
+    protected static final int PRUNE_CHUNK_SIZE = 500;
+
+    /** The maximum time spent on a single pruning run. */
+    protected static final long PRUNE_BUDGET_MILLIS = 30 * 1000L;
+
     /** The name of the account actions table. */
     protected static final String TABLE = "ACCOUNT_ACTIONS";
 }
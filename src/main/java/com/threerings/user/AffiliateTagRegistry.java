@@ -0,0 +1,133 @@
+//
+// $Id$
+
+package com.threerings.user;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * A thread-safe, two-way mapping between affiliate tags and their integer identifiers. Lookups in
+ * either direction are a single concurrent map lookup. When several threads ask for the id of the
+ * same unknown tag at once, only one of them registers it with the database and the others wait
+ * for (and share) its result.
+ *
+ * <p> Tags registered by other servers are picked up by {@link #refresh}, which the owning user
+ * manager calls periodically.
+ *
+ * @param <E> the checked exception thrown by the underlying repository, or a runtime exception
+ * for repositories that don't throw checked exceptions.
+ */
+public abstract class AffiliateTagRegistry<E extends Exception>
+{
+    /**
+     * Returns the id to which the specified tag has been mapped, registering the tag if
+     * necessary.
+     */
+    public int getTagId (final String tag)
+        throws E
+    {
+        // if we've already mapped this value, we're good to go
+        Integer tagId = _ids.get(tag);
+        if (tagId != null) {
+            return tagId;
+        }
+
+        // otherwise register it, unless someone else is already doing so
+        FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>() {
+            public Integer call () throws Exception {
+                int tagId = registerTag(tag);
+                noteTag(tag, tagId);
+                return tagId;
+            }
+        });
+        FutureTask<Integer> pending = _pending.putIfAbsent(tag, task);
+        if (pending == null) {
+            pending = task;
+            try {
+                task.run();
+            } finally {
+                _pending.remove(tag, task);
+            }
+        }
+        return await(pending);
+    }
+
+    /**
+     * Returns the tag mapped to the specified id, or null if we know of no such tag.
+     */
+    public String getTag (int tagId)
+    {
+        return _tags.get(tagId);
+    }
+
+    /**
+     * Loads all tag mappings from the database, adding any that we didn't already know about.
+     */
+    public void refresh ()
+        throws E
+    {
+        for (Map.Entry<String, Integer> entry : loadTags().entrySet()) {
+            noteTag(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Loads all of the tag mappings from the database.
+     */
+    protected abstract Map<String, Integer> loadTags ()
+        throws E;
+
+    /**
+     * Registers the supplied tag with the database (or looks up its existing registration) and
+     * returns its id.
+     */
+    protected abstract int registerTag (String tag)
+        throws E;
+
+    /**
+     * Records a mapping in both directions.
+     */
+    protected void noteTag (String tag, int tagId)
+    {
+        _tags.put(tagId, tag);
+        _ids.put(tag, tagId);
+    }
+
+    /**
+     * Waits for a registration to complete, rethrowing whatever it threw.
+     */
+    @SuppressWarnings("unchecked")
+    protected int await (FutureTask<Integer> task)
+        throws E
+    {
+        try {
+            return Uninterruptibles.getUninterruptibly(task);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            // registerTag() only throws E (or unchecked exceptions)
+            throw (E)cause;
+        }
+    }
+
+    /** Maps tags to their ids. */
+    protected ConcurrentMap<String, Integer> _ids = new ConcurrentHashMap<String, Integer>();
+
+    /** Maps tag ids to their tags. */
+    protected ConcurrentMap<Integer, String> _tags = new ConcurrentHashMap<Integer, String>();
+
+    /** Registrations that are in progress. */
+    protected ConcurrentMap<String, FutureTask<Integer>> _pending =
+        new ConcurrentHashMap<String, FutureTask<Integer>>();
+}
@@ -1,5 +1,11 @@
 package com.threerings.user;
 
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import com.samskivert.servlet.user.Password;
+
 import de.mkammerer.argon2.Argon2;
 import de.mkammerer.argon2.Argon2Factory;
 
@@ -7,9 +13,92 @@ public class Crypto {
 
     protected static final Argon2 argon2 = Argon2Factory.create();
 
-    private static final int HASH_ITERATIONS = 2;
-    private static final int MEMORY_COST_KB = 65536;
-    private static final int PARALLELISM = 1;
+    /** The default Argon2 parameters, used unless {@link #configure} is called. */
+    public static final int DEFAULT_HASH_ITERATIONS = 2;
+    public static final int DEFAULT_MEMORY_COST_KB = 65536;
+    public static final int DEFAULT_PARALLELISM = 1;
+
+    private static volatile Params params = new Params(
+        DEFAULT_HASH_ITERATIONS, DEFAULT_MEMORY_COST_KB, DEFAULT_PARALLELISM);
+
+    /** The native memory budget used to size the default hashing pool. */
+    private static final long DEFAULT_MEMORY_BUDGET_KB = 512 * 1024;
+
+    /** The number of operations the default hashing pool will queue. */
+    private static final int DEFAULT_QUEUE_SIZE = 256;
+
+    /**
+     * The prefix of a wrapped legacy hash: an Argon2 hash of the legacy
+     * (pre-Argon2) hash of the password, made so that legacy hashes can be
+     * protected without knowing their plaintext.
+     */
+    public static final String WRAPPED_PREFIX = "$wrapped";
+
+    private static HashingPool pool;
+
+    /** An immutable set of Argon2 parameters. */
+    private static class Params {
+        public final int iterations;
+        public final int memoryCostKB;
+        public final int parallelism;
+
+        public Params(int iterations, int memoryCostKB, int parallelism) {
+            this.iterations = iterations;
+            this.memoryCostKB = memoryCostKB;
+            this.parallelism = parallelism;
+        }
+    }
+
+    /**
+     * Sets the Argon2 parameters used for new hashes. Existing hashes made
+     * with other parameters still verify, and {@link #needsRehash} reports
+     * them so that they can be upgraded as their owners log in.
+     *
+     * @param iterations the number of iterations
+     * @param memoryCostKB the memory cost in kilobytes
+     * @param parallelism the number of lanes
+     */
+    public static void configure(int iterations, int memoryCostKB, int parallelism) {
+        if (iterations < 1 || memoryCostKB < 8 * parallelism || parallelism < 1) {
+            throw new IllegalArgumentException("Invalid Argon2 parameters [iterations=" +
+                iterations + ", memoryCostKB=" + memoryCostKB + ", parallelism=" +
+                parallelism + "]");
+        }
+        params = new Params(iterations, memoryCostKB, parallelism);
+    }
+
+    /**
+     * Sets the Argon2 parameters used for new hashes from the given
+     * configuration: <code>hashing.iterations</code>,
+     * <code>hashing.memory_kb</code> and <code>hashing.parallelism</code>.
+     * Parameters that are not set keep their current values.
+     *
+     * @param config the configuration from which to read the parameters
+     */
+    public static void configure(Properties config) {
+        Params p = params;
+        configure(
+            Integer.parseInt(config.getProperty(
+                "hashing.iterations", String.valueOf(p.iterations))),
+            Integer.parseInt(config.getProperty(
+                "hashing.memory_kb", String.valueOf(p.memoryCostKB))),
+            Integer.parseInt(config.getProperty(
+                "hashing.parallelism", String.valueOf(p.parallelism))));
+    }
+
+    /**
+     * Returns the number of Argon2 iterations used for new hashes.
+     */
+    public static int getIterations() {
+        return params.iterations;
+    }
+
+    /**
+     * Returns the number of Argon2 lanes used for new hashes.
+     */
+    public static int getParallelism() {
+        return params.parallelism;
+    }
 
     /**
      * Hashes the given password using Argon2.
@@ -18,18 +107,158 @@ public class Crypto {
      * @return the hashed password
      */
     public static String hashPassword(char[] password) {
-        return argon2.hash(HASH_ITERATIONS, MEMORY_COST_KB, PARALLELISM, password);
+        Params p = params;
+        return argon2.hash(p.iterations, p.memoryCostKB, p.parallelism, password);
+    }
+
+    /**
+     * Hashes the given password using Argon2 on the hashing pool. The
+     * returned future fails with a RejectedExecutionException if the pool's
+     * queue is full.
+     *
+     * @param password the password to hash
+     * @return a future that completes with the hashed password
+     */
+    public static CompletableFuture<String> hashPasswordAsync(char[] password) {
+        return getHashingPool().hash(password);
+    }
+
+    /**
+     * Verifies the given password against the stored hash on the hashing
+     * pool (see {@link #verifyPassword}). The returned future fails with a
+     * RejectedExecutionException if the pool's queue is full.
+     *
+     * @param password the plaintext password to verify, or null
+     * @param legacyHash the legacy hash of the password to verify, or null
+     * @param hash the stored hash
+     * @return a future that completes with true if the password matches
+     */
+    public static CompletableFuture<Boolean> verifyPasswordAsync(
+        char[] password, String legacyHash, String hash) {
+        return getHashingPool().verify(password, legacyHash, hash);
+    }
+
+    /**
+     * Waits for the given hashing operation to complete, rethrowing any
+     * unchecked exception it failed with (such as the RejectedExecutionException
+     * thrown when the hashing pool is saturated).
+     *
+     * @param future the operation to wait for
+     * @return the result of the operation
+     */
+    public static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException ce) {
+            Throwable cause = ce.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ce;
+        }
+    }
+
+    /**
+     * Returns the pool on which asynchronous hashing operations run,
+     * creating a default pool sized for a 512MB memory budget if none has
+     * been configured.
+     */
+    public static synchronized HashingPool getHashingPool() {
+        if (pool == null) {
+            pool = new HashingPool(HashingPool.computeConcurrency(DEFAULT_MEMORY_BUDGET_KB),
+                DEFAULT_QUEUE_SIZE);
+        }
+        return pool;
     }
 
     /**
-     * Verifies the given password against the stored hash.
+     * Replaces the pool on which asynchronous hashing operations run. The
+     * previous pool, if any, is shut down.
      *
-     * @param password the password to verify
+     * @param newPool the pool to use
+     */
+    public static synchronized void setHashingPool(HashingPool newPool) {
+        if (pool != null) {
+            pool.shutdown();
+        }
+        pool = newPool;
+    }
+
+    /**
+     * Returns the amount of memory, in kilobytes, used by each hash.
+     */
+    public static int getMemoryCostKB() {
+        return params.memoryCostKB;
+    }
+
+    /**
+     * Verifies the given password against the stored hash. A wrapped legacy
+     * hash is verified against the legacy hash of the password (that is,
+     * {@link Password#getEncrypted}), which is exactly what was wrapped, and
+     * a plain Argon2 hash against the plaintext password.
+     *
+     * @param password the plaintext password to verify, or null
+     * @param legacyHash the legacy hash of the password to verify, or null
      * @param hash the stored hash
      * @return true if the password matches the hash, false otherwise
      */
-    public static boolean verifyPassword(char[] password, String hash) {
-        return argon2.verify(hash, password);
+    public static boolean verifyPassword(char[] password, String legacyHash, String hash) {
+        if (isWrapped(hash)) {
+            if (legacyHash == null) {
+                return false;
+            }
+            char[] legacy = legacyHash.toCharArray();
+            try {
+                return argon2.verify(hash.substring(WRAPPED_PREFIX.length()), legacy);
+            } finally {
+                wipeArray(legacy);
+            }
+        }
+        return password != null && argon2.verify(hash, password);
+    }
+
+    /**
+     * Wraps the given legacy hash with Argon2 using the current parameters.
+     * The result verifies with {@link #verifyPassword} against the original
+     * plaintext password.
+     *
+     * @param legacyHash the legacy hash to wrap
+     * @return the wrapped hash
+     */
+    public static String wrapLegacyHash(String legacyHash) {
+        char[] legacy = legacyHash.toCharArray();
+        try {
+            return WRAPPED_PREFIX + hashPassword(legacy);
+        } finally {
+            wipeArray(legacy);
+        }
+    }
+
+    /**
+     * Checks whether the given hash is a wrapped legacy hash.
+     *
+     * @param hash the hash to check
+     * @return true if the hash is a wrapped legacy hash
+     */
+    public static boolean isWrapped(String hash) {
+        return hash != null && hash.startsWith(WRAPPED_PREFIX + "$argon2");
+    }
+
+    /**
+     * Hashes the given password with the given parameters, regardless of the
+     * configured parameters. Used to calibrate those parameters.
+     *
+     * @param password the password to hash
+     * @param iterations the number of iterations
+     * @param memoryCostKB the memory cost in kilobytes
+     * @param parallelism the number of lanes
+     * @return the hashed password
+     */
+    public static String hashPassword(char[] password, int iterations, int memoryCostKB,
+                                      int parallelism) {
+        return argon2.hash(iterations, memoryCostKB, parallelism, password);
     }
 
     /**
@@ -40,7 +269,12 @@ public class Crypto {
      * @return true if the hash needs to be rehashed, false otherwise
      */
     public static boolean needsRehash(String hash) {
-        return argon2.needsRehash(hash, HASH_ITERATIONS, MEMORY_COST_KB, PARALLELISM);
+        // wrapped hashes are upgraded to plain Argon2 hashes whenever possible
+        if (isWrapped(hash)) {
+            return true;
+        }
+        Params p = params;
+        return argon2.needsRehash(hash, p.iterations, p.memoryCostKB, p.parallelism);
     }
 
     /**
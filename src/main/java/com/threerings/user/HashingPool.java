@@ -0,0 +1,213 @@
+//
+// $Id$
+
+package com.threerings.user;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+import java.util.function.Supplier;
+
+import static com.threerings.user.Log.log;
+
+/**
+ * Runs password hashing and verification on a dedicated, bounded pool of threads. Each Argon2
+ * operation pins a core and allocates {@link Crypto#getMemoryCostKB} of native memory, so running
+ * them on whatever request thread happens to need one means that a login storm can exhaust both.
+ * The pool caps the number of concurrent operations and queues a bounded number of waiting
+ * operations; when the queue is full, new operations fail immediately with a {@link
+ * RejectedExecutionException} rather than piling up.
+ *
+ * <p> The time that operations spend waiting in the queue and hashing is tracked for monitoring
+ * (see {@link #getStats}).
+ */
+public class HashingPool
+{
+    /** A snapshot of a pool's metrics. */
+    public static class Stats
+    {
+        /** The number of operations completed (successfully or otherwise). */
+        public final long completed;
+
+        /** The number of operations rejected because the queue was full. */
+        public final long rejected;
+
+        /** The number of operations currently waiting in the queue. */
+        public final int queued;
+
+        /** The total and maximum milliseconds that completed operations spent in the queue. */
+        public final long totalWaitMillis, maxWaitMillis;
+
+        /** The total and maximum milliseconds that completed operations spent hashing. */
+        public final long totalHashMillis, maxHashMillis;
+
+        public Stats (long completed, long rejected, int queued, long totalWaitMillis,
+                      long maxWaitMillis, long totalHashMillis, long maxHashMillis) {
+            this.completed = completed;
+            this.rejected = rejected;
+            this.queued = queued;
+            this.totalWaitMillis = totalWaitMillis;
+            this.maxWaitMillis = maxWaitMillis;
+            this.totalHashMillis = totalHashMillis;
+            this.maxHashMillis = maxHashMillis;
+        }
+
+        @Override // from Object
+        public String toString () {
+            long avgWait = (completed == 0) ? 0 : totalWaitMillis / completed;
+            long avgHash = (completed == 0) ? 0 : totalHashMillis / completed;
+            return "[completed=" + completed + ", rejected=" + rejected + ", queued=" + queued +
+                ", avgWait=" + avgWait + "ms, maxWait=" + maxWaitMillis + "ms, avgHash=" +
+                avgHash + "ms, maxHash=" + maxHashMillis + "ms]";
+        }
+    }
+
+    /**
+     * Returns the number of concurrent hashing operations that fit in the supplied native memory
+     * budget with the current hashing parameters, capped at the number of available processors.
+     */
+    public static int computeConcurrency (long memoryBudgetKB)
+    {
+        int byMemory = (int)Math.max(1, memoryBudgetKB / Crypto.getMemoryCostKB());
+        return Math.min(byMemory, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a pool that runs at most {@code concurrency} operations at once and queues at most
+     * {@code queueSize} more.
+     */
+    public HashingPool (int concurrency, int queueSize)
+    {
+        _executor = new ThreadPoolExecutor(
+            concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                public Thread newThread (Runnable task) {
+                    Thread thread = new Thread(task, "HashingPool-" + _threadId.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.AbortPolicy());
+        log.info("Created hashing pool", "concurrency", concurrency, "queueSize", queueSize);
+    }
+
+    /**
+     * Hashes the supplied password. The password is copied, so the caller may wipe its array as
+     * soon as this method returns.
+     */
+    public CompletableFuture<String> hash (char[] password)
+    {
+        final char[] copy = password.clone();
+        return submit(new Supplier<String>() {
+            public String get () {
+                try {
+                    return Crypto.hashPassword(copy);
+                } finally {
+                    Crypto.wipeArray(copy);
+                }
+            }
+        });
+    }
+
+    /**
+     * Verifies the supplied password, or its legacy hash, against the supplied hash (see {@link
+     * Crypto#verifyPassword}). The password is copied, so the caller may wipe its array as soon as
+     * this method returns.
+     */
+    public CompletableFuture<Boolean> verify (
+        char[] password, final String legacyHash, final String hash)
+    {
+        final char[] copy = (password == null) ? null : password.clone();
+        return submit(new Supplier<Boolean>() {
+            public Boolean get () {
+                try {
+                    return Crypto.verifyPassword(copy, legacyHash, hash);
+                } finally {
+                    if (copy != null) {
+                        Crypto.wipeArray(copy);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a snapshot of this pool's metrics.
+     */
+    public Stats getStats ()
+    {
+        return new Stats(_completed.sum(), _rejected.sum(), _executor.getQueue().size(),
+                         _totalWait.sum(), _maxWait.get(), _totalHash.sum(), _maxHash.get());
+    }
+
+    /**
+     * Stops accepting new operations. Operations already queued are still run.
+     */
+    public void shutdown ()
+    {
+        _executor.shutdown();
+    }
+
+    /**
+     * Runs the supplied operation on our executor, tracking its queue and hashing time.
+     */
+    protected <T> CompletableFuture<T> submit (final Supplier<T> op)
+    {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        final long queued = System.nanoTime();
+        try {
+            _executor.execute(new Runnable() {
+                public void run () {
+                    long started = System.nanoTime();
+                    try {
+                        result.complete(op.get());
+                    } catch (Throwable t) {
+                        result.completeExceptionally(t);
+                    } finally {
+                        noteCompleted(started - queued, System.nanoTime() - started);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            _rejected.increment();
+            result.completeExceptionally(ree);
+        }
+        return result;
+    }
+
+    protected void noteCompleted (long waitNanos, long hashNanos)
+    {
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        long hashMillis = TimeUnit.NANOSECONDS.toMillis(hashNanos);
+        _completed.increment();
+        _totalWait.add(waitMillis);
+        _maxWait.accumulate(waitMillis);
+        _totalHash.add(hashMillis);
+        _maxHash.accumulate(hashMillis);
+    }
+
+    /** Runs our hashing operations. */
+    protected ThreadPoolExecutor _executor;
+
+    /** Used to name our threads. */
+    protected AtomicInteger _threadId = new AtomicInteger();
+
+    /** Our metrics. */
+    protected LongAdder _completed = new LongAdder(), _rejected = new LongAdder();
+    protected LongAdder _totalWait = new LongAdder(), _totalHash = new LongAdder();
+    protected LongAccumulator _maxWait = new LongAccumulator(MAX, 0L);
+    protected LongAccumulator _maxHash = new LongAccumulator(MAX, 0L);
+
+    /** Used to track our maximum times. */
+    protected static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        public long applyAsLong (long one, long two) {
+            return Math.max(one, two);
+        }
+    };
+}
@@ -3,8 +3,9 @@
 
 package com.threerings.user;
 
-import com.google.common.collect.HashMultiset;
-import com.google.common.collect.Multiset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.samskivert.util.Interval;
 
@@ -12,21 +13,23 @@ import static com.threerings.user.Log.log;
 
 /**
  * Tracks logins by a user identifier and if they attempt to login too often, lets us know.
- * Note that the period is how often we clear the entire table, so specific users may find
- * up to 2x the attempt rate during their first set of attempts if it happens to cross the
- * boundary.
+ *
+ * <p> Attempts are counted over a sliding window of one period. Each identifier has its own
+ * counter (so login threads only contend when they are working on the same identifier), which
+ * tracks the attempts made in the current and previous periods and weights the previous period's
+ * count by how much of it still overlaps the sliding window. Identifiers that have not been seen
+ * for two periods are periodically evicted.
  */
 public class LoginThrottle<K>
 {
     public LoginThrottle (int maxLogins, long period)
     {
         _maxLogins = maxLogins;
+        _period = period;
 
         (new Interval(Interval.RUN_DIRECT) {
             @Override public void expired () {
-                synchronized(_recentLogins) {
-                    _recentLogins.clear();
-                }
+                evictIdle();
             }
         }).schedule(period, true);
     }
@@ -38,14 +41,12 @@ public class LoginThrottle<K>
     @Deprecated
     public boolean noteLogin (K userIdentifier)
     {
-        synchronized(_recentLogins) {
-            int loginCount = 1 + _recentLogins.add(userIdentifier, 1);
-            if (loginCount > _maxLogins) {
-                recordThrottledAttempt(userIdentifier, loginCount);
-                return false;
-            } else {
-                return true;
-            }
+        int loginCount = add(userIdentifier, 1);
+        if (loginCount > _maxLogins) {
+            recordThrottledAttempt(userIdentifier, loginCount);
+            return false;
+        } else {
+            return true;
         }
     }
 
@@ -55,9 +56,7 @@ public class LoginThrottle<K>
     @Deprecated
     public void noteLoginSuccess (K userIdentifier)
     {
-        synchronized(_recentLogins) {
-            _recentLogins.add(userIdentifier, -1);
-        }
+        add(userIdentifier, -1);
     }
 
     /**
@@ -65,9 +64,13 @@ public class LoginThrottle<K>
      */
     public boolean isLoginAttemptBlocked (K userIdentifier)
     {
+        Counter counter = _counters.get(userIdentifier);
+        if (counter == null) {
+            return false;
+        }
         int count;
-        synchronized (_recentLogins) {
-            count = _recentLogins.count(userIdentifier);
+        synchronized (counter) {
+            count = counter.count(System.currentTimeMillis(), _period);
         }
         if (_maxLogins <= count) {
             recordThrottledAttempt(userIdentifier, count);
@@ -82,9 +85,7 @@ public class LoginThrottle<K>
      */
     public boolean noteFailedLogin (K userIdentifier)
     {
-        synchronized (_recentLogins) {
-            return _maxLogins <= 1 + _recentLogins.add(userIdentifier, 1);
-        }
+        return _maxLogins <= add(userIdentifier, 1);
     }
 
     /**
@@ -96,9 +97,108 @@ public class LoginThrottle<K>
         log.info("Throttled login attempt", "identifier", userIdentifier, "loginCount", loginCount);
     }
 
+    /**
+     * Adds the supplied delta to the count for the specified identifier.
+     *
+     * @return the identifier's count over the sliding window, after the addition.
+     */
+    protected int add (K userIdentifier, int delta)
+    {
+        long now = System.currentTimeMillis();
+        while (true) {
+            Counter counter = _counters.get(userIdentifier);
+            if (counter == null) {
+                Counter ncounter = new Counter(now);
+                counter = _counters.putIfAbsent(userIdentifier, ncounter);
+                if (counter == null) {
+                    counter = ncounter;
+                }
+            }
+            synchronized (counter) {
+                // if this counter was evicted while we were getting our hands on it, try again
+                if (counter.evicted) {
+                    continue;
+                }
+                return counter.add(now, _period, delta);
+            }
+        }
+    }
+
+    /**
+     * Removes the counters for identifiers that have not been seen for two periods.
+     */
+    protected void evictIdle ()
+    {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<K, Counter> entry : _counters.entrySet()) {
+            Counter counter = entry.getValue();
+            synchronized (counter) {
+                if (now - counter.lastTouched >= 2 * _period) {
+                    counter.evicted = true;
+                    _counters.remove(entry.getKey(), counter);
+                }
+            }
+        }
+    }
+
+    /** Tracks the attempts for a single identifier. All access must be synchronized on the
+     * counter. */
+    protected static class Counter
+    {
+        /** The time at which the current period started. */
+        public long periodStart;
+
+        /** The last time this counter was modified. */
+        public long lastTouched;
+
+        /** The number of attempts made in the previous and current periods. */
+        public int previous, current;
+
+        /** Set when this counter has been evicted and must no longer be used. */
+        public boolean evicted;
+
+        public Counter (long now) {
+            periodStart = now;
+            lastTouched = now;
+        }
+
+        /** Returns our count over the sliding window ending at {@code now}. */
+        public int count (long now, long period) {
+            roll(now, period);
+            long overlap = period - (now - periodStart);
+            return current + (int)(previous * overlap / period);
+        }
+
+        /** Adds the supplied delta to our current count and returns our sliding window count. */
+        public int add (long now, long period, int delta) {
+            roll(now, period);
+            lastTouched = now;
+            if (delta < 0 && current == 0) {
+                previous = Math.max(0, previous + delta);
+            } else {
+                current = Math.max(0, current + delta);
+            }
+            return count(now, period);
+        }
+
+        /** Advances our periods so that the current period contains {@code now}. */
+        protected void roll (long now, long period) {
+            long elapsed = now - periodStart;
+            if (elapsed >= period) {
+                long periods = elapsed / period;
+                previous = (periods == 1) ? current : 0;
+                current = 0;
+                periodStart += periods * period;
+            }
+        }
+    }
+
     /** How many logins they're allowed to try during a period. */
     protected int _maxLogins;
 
-    /** Recent login attempt counts by user identifier. */
-    protected Multiset<K> _recentLogins = HashMultiset.create();
+    /** The length of our sliding window, in milliseconds. */
+    protected long _period;
+
+    /** Recent login attempt counters by user identifier. */
+    protected ConcurrentMap<K, Counter> _counters = new ConcurrentHashMap<K, Counter>();
 }
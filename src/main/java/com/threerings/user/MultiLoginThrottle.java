@@ -0,0 +1,119 @@
+//
+// $Id$
+
+package com.threerings.user;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.threerings.user.Log.log;
+
+/**
+ * Throttles login attempts by username, machine identifier and client address at the same time,
+ * with a separate limit for each. A single call checks or records an attempt against all three
+ * dimensions.
+ *
+ * <p> Each dimension is tracked by a {@link LoginThrottle}, so checking an identifier that has
+ * been seen before involves only a concurrent map lookup (using the identifier's cached string
+ * hash) and a lock on that identifier's own counter; nothing is allocated. The number of attempts
+ * blocked by each dimension is tracked for monitoring.
+ */
+public class MultiLoginThrottle
+{
+    /** The dimension identifying attempts by username. */
+    public static final int USERNAME = 0;
+
+    /** The dimension identifying attempts by machine identifier. */
+    public static final int MACH_IDENT = 1;
+
+    /** The dimension identifying attempts by client address. */
+    public static final int ADDRESS = 2;
+
+    /**
+     * Creates a throttle that allows the specified number of failed attempts per period in each
+     * dimension. A limit of zero disables throttling in that dimension.
+     */
+    public MultiLoginThrottle (long period, int maxUsername, int maxMachIdent, int maxAddress)
+    {
+        _throttles[USERNAME] = createThrottle(USERNAME, maxUsername, period);
+        _throttles[MACH_IDENT] = createThrottle(MACH_IDENT, maxMachIdent, period);
+        _throttles[ADDRESS] = createThrottle(ADDRESS, maxAddress, period);
+    }
+
+    /**
+     * Should we block a login attempt because too many attempts have failed for any of the
+     * supplied identifiers? Null identifiers are ignored.
+     */
+    public boolean isLoginAttemptBlocked (String username, String machIdent, String address)
+    {
+        return isBlocked(USERNAME, username) || isBlocked(MACH_IDENT, machIdent) ||
+            isBlocked(ADDRESS, address);
+    }
+
+    /**
+     * Notes a failed login for all of the supplied identifiers (null identifiers are ignored).
+     *
+     * @return true if any of the identifiers has now reached its limit and will be blocked.
+     */
+    public boolean noteFailedLogin (String username, String machIdent, String address)
+    {
+        // note the failure in every dimension, even if an earlier one has reached its limit
+        boolean blocked = noteFailed(USERNAME, username);
+        blocked = noteFailed(MACH_IDENT, machIdent) || blocked;
+        blocked = noteFailed(ADDRESS, address) || blocked;
+        return blocked;
+    }
+
+    /**
+     * Returns the number of login attempts that have been blocked by the specified dimension.
+     */
+    public long getBlockedCount (int dimension)
+    {
+        return _blocked[dimension].sum();
+    }
+
+    /**
+     * Logs a blocked attempt. Can be overridden if you really don't care about tracking that sort
+     * of thing.
+     */
+    protected void recordThrottledAttempt (int dimension, String identifier, int loginCount)
+    {
+        log.info("Throttled login attempt", "dimension", DIMENSION_NAMES[dimension],
+                 "identifier", identifier, "loginCount", loginCount);
+    }
+
+    protected boolean isBlocked (int dimension, String identifier)
+    {
+        LoginThrottle<String> throttle = _throttles[dimension];
+        return throttle != null && identifier != null && throttle.isLoginAttemptBlocked(identifier);
+    }
+
+    protected boolean noteFailed (int dimension, String identifier)
+    {
+        LoginThrottle<String> throttle = _throttles[dimension];
+        return throttle != null && identifier != null && throttle.noteFailedLogin(identifier);
+    }
+
+    protected LoginThrottle<String> createThrottle (
+        final int dimension, int maxLogins, long period)
+    {
+        if (maxLogins <= 0) {
+            return null;
+        }
+        return new LoginThrottle<String>(maxLogins, period) {
+            @Override protected void recordThrottledAttempt (String identifier, int loginCount) {
+                _blocked[dimension].increment();
+                MultiLoginThrottle.this.recordThrottledAttempt(dimension, identifier, loginCount);
+            }
+        };
+    }
+
+    /** Our throttle for each dimension, or null for disabled dimensions. */
+    @SuppressWarnings("unchecked")
+    protected LoginThrottle<String>[] _throttles = new LoginThrottle[DIMENSION_NAMES.length];
+
+    /** The number of attempts blocked by each dimension. */
+    protected LongAdder[] _blocked = { new LongAdder(), new LongAdder(), new LongAdder() };
+
+    /** The names of our dimensions, for logging. */
+    protected static final String[] DIMENSION_NAMES = { "username", "machIdent", "address" };
+}
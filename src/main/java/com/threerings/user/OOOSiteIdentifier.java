@@ -17,6 +17,8 @@ import com.samskivert.servlet.Site;
 import com.samskivert.servlet.util.CookieUtil;
 import com.samskivert.util.StringUtil;
 
+import com.threerings.servlet.DomainMatcher;
+
 import static com.threerings.user.Log.log;
 
 /**
@@ -82,13 +84,28 @@ public class OOOSiteIdentifier extends JDBCTableSiteIdentifier
         }
 
         // otherwise we just use a static mapping
-        String serverName = req.getServerName();
-        for (OOOSite site : OOOUser.SITES) {
-            if (serverName.endsWith(site.domain)) {
-                return site.siteId;
+        int siteId = getSitesMatcher().match(req.getServerName(), NO_SITE);
+        return (siteId == NO_SITE) ? super.identifySite(req) : siteId;
+    }
+
+    /**
+     * Returns a matcher for the domains in {@link OOOUser#SITES}, creating a new one if that list
+     * has been replaced since we last created our matcher.
+     */
+    protected static DomainMatcher getSitesMatcher ()
+    {
+        List<OOOSite> sites = OOOUser.SITES;
+        DomainMatcher matcher = _sitesMatcher;
+        if (matcher == null || _matchedSites != sites) {
+            matcher = new DomainMatcher();
+            for (OOOSite site : sites) {
+                matcher.add(site.domain, site.siteId);
             }
+            // publish the matcher first; at worst a racing caller creates a redundant matcher
+            _sitesMatcher = matcher;
+            _matchedSites = sites;
         }
-        return super.identifySite(req);
+        return matcher;
     }
 
     @Override // from JDBCTableSiteIdentifier
@@ -124,4 +141,13 @@ public class OOOSiteIdentifier extends JDBCTableSiteIdentifier
         }
         return sites.iterator();
     }
+
+    /** Matches domains against {@link OOOUser#SITES}. */
+    protected static volatile DomainMatcher _sitesMatcher;
+
+    /** The list from which {@link #_sitesMatcher} was created. */
+    protected static volatile List<OOOSite> _matchedSites;
+
+    /** Returned by our matcher when a server name matches none of our sites. */
+    protected static final int NO_SITE = Integer.MIN_VALUE;
 }
@@ -3,9 +3,11 @@
 
 package com.threerings.user;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
 
 import com.google.common.collect.ImmutableList;
 import com.samskivert.jdbc.jora.FieldMask;
@@ -198,7 +200,9 @@ public class OOOUser extends User
     /** The flags detailing the user's various bits of status. (VALIDATED_FLAG, etc) */
     public int flags;
 
-    /** The tokens detailing the user's site access permissions. (ADMIN, TESTER, etc) */
+    /** The tokens detailing the user's site access permissions. (ADMIN, TESTER, etc) Token checks
+     * are made against a mask computed from this array whenever the array is replaced, so the
+     * array must not be modified in place. */
     public byte[] tokens;
 
     /** The user's account status for Yohoho! Puzzle Pirates. (TRIAL_STATE, SUBSCRIBER_STATE,
@@ -275,6 +279,31 @@ public class OOOUser extends User
         return isFlagSet(HAS_BOUGHT_COINS_FLAG);
     }
 
+    /**
+     * Adds the supplied machine identifier to this user's identifiers if it is not already among
+     * them. The identifiers are kept sorted so that they may be binary searched.
+     *
+     * @return true if the identifier was added, false if it was already present.
+     */
+    public boolean addMachIdent (String machIdent)
+    {
+        if (machIdents == null) {
+            machIdents = new String[] { machIdent };
+            return true;
+        }
+        int idx = Arrays.binarySearch(machIdents, machIdent);
+        if (idx >= 0) {
+            return false;
+        }
+        idx = -idx - 1;
+        String[] idents = new String[machIdents.length + 1];
+        System.arraycopy(machIdents, 0, idents, 0, idx);
+        idents[idx] = machIdent;
+        System.arraycopy(machIdents, idx, idents, idx + 1, machIdents.length - idx);
+        machIdents = idents;
+        return true;
+    }
+
     /**
      * Returns true if the user has even purchased time from us.
      */
@@ -325,7 +354,8 @@ public class OOOUser extends User
      */
     public void addToken (byte token)
     {
-        // check to see if they already have it
+        // check to see if they already have it (if not, we must allocate a new array as the
+        // array's length is its token count in the database)
         if (!holdsToken(token)) {
             if (tokens == null) {
                 tokens = new byte[] { token };
@@ -349,30 +379,96 @@ public class OOOUser extends User
     }
 
     /**
-     * Sets the user's password from a plaintext string.
+     * Sets the user's password from a plaintext string. The password is
+     * hashed on the hashing pool, so this throws a RejectedExecutionException
+     * if the pool is saturated.
      *
      * @param password the password to set
      */
     public void setPassword(char[] password) {
-        String encrypted = Crypto.hashPassword(password);
+        String encrypted = Crypto.await(Crypto.hashPasswordAsync(password));
         setPassword(Password.makeFromCrypto(encrypted));
     }
 
+    /**
+     * Checks the user's password against the provided password, which may
+     * have been made from either cleartext or a legacy hash. A wrapped legacy
+     * hash is checked against the provided password's legacy hash, so it
+     * matches either way; a plain Argon2 hash can only be checked against
+     * cleartext. The check runs on the hashing pool, so this throws a
+     * RejectedExecutionException if the pool is saturated.
+     *
+     * @param password the password to check
+     * @return true if the password is correct, false otherwise
+     */
+    public boolean checkPassword(Password password) {
+        String cleartext = password.getCleartext();
+        char[] passchars = (cleartext == null) ? null : cleartext.toCharArray();
+        try {
+            return checkPassword(passchars, password.getEncrypted());
+        } finally {
+            if (passchars != null) {
+                Crypto.wipeArray(passchars);
+            }
+        }
+    }
+
     /**
      * Checks the user's password against the provided plaintext password.
+     * Wrapped legacy hashes can't be checked without the legacy hash of the
+     * password, so they never match; use {@link #checkPassword(Password)} or
+     * {@link #checkPassword(char[],String)} to check them. The check runs on
+     * the hashing pool, so this throws a RejectedExecutionException if the
+     * pool is saturated.
      *
      * @param password the plaintext password to check
      * @return true if the password is correct, false otherwise
      */
     public boolean checkPassword(char[] password) {
-        return Crypto.verifyPassword(password, this.password);
+        return checkPassword(password, null);
     }
 
     /**
-     * Checks whether the user's password is hashed using Argon2.
+     * Checks the user's password against the provided plaintext password or
+     * legacy hash. The check runs on the hashing pool, so this throws a
+     * RejectedExecutionException if the pool is saturated.
+     *
+     * @param password the plaintext password to check, or null
+     * @param legacyHash the legacy hash of the password to check, or null
+     * @return true if the password is correct, false otherwise
+     */
+    public boolean checkPassword(char[] password, String legacyHash) {
+        return Crypto.await(checkPasswordAsync(password, legacyHash));
+    }
+
+    /**
+     * Checks the user's password against the provided plaintext password or
+     * legacy hash on the hashing pool.
+     *
+     * @param password the plaintext password to check, or null
+     * @param legacyHash the legacy hash of the password to check, or null
+     * @return a future that completes with true if the password is correct
+     */
+    public CompletableFuture<Boolean> checkPasswordAsync(char[] password, String legacyHash) {
+        return Crypto.verifyPasswordAsync(password, legacyHash, this.password);
+    }
+
+    /**
+     * Checks whether the user's password is a wrapped legacy hash, which can
+     * be checked against the legacy hash of a password rather than its
+     * cleartext.
+     */
+    public boolean isWrapped() {
+        return Crypto.isWrapped(password);
+    }
+
+    /**
+     * Checks whether the user's password is hashed using Argon2, either
+     * directly or as a wrapped legacy hash. Either way, it must be checked
+     * with {@link #checkPassword}.
      */
     public boolean isArgon2Hashed() {
-        return Crypto.isArgon2Hashed(password);
+        return Crypto.isArgon2Hashed(password) || Crypto.isWrapped(password);
     }
 
     /**
@@ -462,17 +558,18 @@ public class OOOUser extends User
      */
     public boolean holdsToken (byte token)
     {
-        if (tokens == null) {
-            return false;
+        TokenMask mask = getTokenMask();
+        if (token >= 0 && token < Long.SIZE) {
+            return (mask.mask & (1L << token)) != 0;
         }
-
-        int tcount = tokens.length;
-        for (int ii = 0; ii < tcount; ii++) {
-            if (tokens[ii] == token) {
-                return true;
+        // tokens that don't fit in the mask are checked the slow way
+        if (mask.overflow) {
+            for (byte held : mask.tokens) {
+                if (held == token) {
+                    return true;
+                }
             }
         }
-
         return false;
     }
 
@@ -512,7 +609,7 @@ public class OOOUser extends User
     @Override
     public boolean isAdmin ()
     {
-        return holdsToken(ADMIN) || isMaintainer();
+        return (getTokenMask().mask & ADMIN_MASK) != 0;
     }
 
     /**
@@ -520,7 +617,7 @@ public class OOOUser extends User
      */
     public boolean isInsider ()
     {
-        return (holdsToken(INSIDER) || isAdmin());
+        return (getTokenMask().mask & INSIDER_MASK) != 0;
     }
 
     /**
@@ -536,7 +633,7 @@ public class OOOUser extends User
      */
     public boolean isSupportPlus ()
     {
-        return isSupport() || isAdmin();
+        return (getTokenMask().mask & SUPPORT_PLUS_MASK) != 0;
     }
 
     /**
@@ -632,20 +729,55 @@ public class OOOUser extends User
      */
     public boolean holdsAnyToken (byte[] tokset)
     {
-        if (tokens == null) {
-            return false;
+        for (byte token : tokset) {
+            if (token < 0 || token >= Long.SIZE) {
+                // tokens that don't fit in a mask are checked the slow way
+                if (holdsToken(token)) {
+                    return true;
+                }
+            }
         }
+        return holdsAnyToken(toTokenMask(tokset));
+    }
 
-        int tcount = tokens.length, scount = tokset.length;
-        for (int ii = 0; ii < tcount; ii++) {
-            for (int tt = 0; tt < scount; tt++) {
-                if (tokens[ii] == tokset[tt]) {
-                    return true;
+    /**
+     * Returns true if this user holds any of the tokens in the supplied mask (see {@link
+     * #toTokenMask}).
+     */
+    public boolean holdsAnyToken (long tokmask)
+    {
+        return (getTokenMask().mask & tokmask) != 0;
+    }
+
+    /**
+     * Returns a mask with the bits corresponding to each of the supplied tokens set. Tokens
+     * outside of the range [0, 63] are ignored.
+     */
+    public static long toTokenMask (byte... tokset)
+    {
+        long mask = 0L;
+        if (tokset != null) {
+            for (byte token : tokset) {
+                if (token >= 0 && token < Long.SIZE) {
+                    mask |= (1L << token);
                 }
             }
         }
+        return mask;
+    }
 
-        return false;
+    /**
+     * Returns the mask computed from our current token array, recomputing it if the array has
+     * been replaced since it was last computed.
+     */
+    protected TokenMask getTokenMask ()
+    {
+        TokenMask mask = _tokenMask;
+        byte[] tokens = this.tokens;
+        if (mask.tokens != tokens) {
+            _tokenMask = mask = new TokenMask(tokens);
+        }
+        return mask;
     }
 
     // A protected method can be called by another class in the same package, but if you extend the
@@ -657,4 +789,45 @@ public class OOOUser extends User
     {
         super.setDirtyMask(mask);
     }
+
+    /** A mask of the tokens in a particular token array. Immutable so that it may be safely
+     * shared between threads that share a user. */
+    protected static class TokenMask
+    {
+        /** The token array from which this mask was computed. */
+        public final byte[] tokens;
+
+        /** The tokens in the range [0, 63], as a bitmask. */
+        public final long mask;
+
+        /** Whether the array contains tokens outside of the range [0, 63]. */
+        public final boolean overflow;
+
+        public TokenMask (byte[] tokens) {
+            this.tokens = tokens;
+            this.mask = toTokenMask(tokens);
+            boolean overflow = false;
+            if (tokens != null) {
+                for (byte token : tokens) {
+                    overflow |= (token < 0 || token >= Long.SIZE);
+                }
+            }
+            this.overflow = overflow;
+        }
+    }
+
+    /** The mask of our current tokens. */
+    protected transient TokenMask _tokenMask = NO_TOKENS;
+
+    /** The mask of a user with no tokens. */
+    protected static final TokenMask NO_TOKENS = new TokenMask(null);
+
+    /** The tokens that make a user an admin. */
+    protected static final long ADMIN_MASK = toTokenMask(ADMIN, MAINTAINER);
+
+    /** The tokens that make a user an insider. */
+    protected static final long INSIDER_MASK = ADMIN_MASK | toTokenMask(INSIDER);
+
+    /** The tokens that make a user support (or higher). */
+    protected static final long SUPPORT_PLUS_MASK = ADMIN_MASK | toTokenMask(SUPPORT);
 }
@@ -5,11 +5,13 @@ package com.threerings.user;
 
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.RejectedExecutionException;
 import jakarta.servlet.http.HttpServletRequest;
 
 import com.google.common.collect.Maps;
 
 import com.samskivert.io.PersistenceException;
+import com.samskivert.util.Interval;
 import com.samskivert.util.RunQueue;
 import com.samskivert.jdbc.ConnectionProvider;
 
@@ -37,9 +39,14 @@ public class OOOUserManager extends UserManager
             throws AuthenticationFailedException
         {
             OOOUser ouser = (OOOUser)user;
-            char[] passchars = password.getCleartext().toCharArray();
-            boolean matched = ouser.isArgon2Hashed() ?
-                ouser.checkPassword(passchars) : user.passwordsMatch(password);
+            boolean matched;
+            try {
+                matched = ouser.isArgon2Hashed() ?
+                    ouser.checkPassword(password) : user.passwordsMatch(password);
+            } catch (RejectedExecutionException ree) {
+                // the hashing pool is saturated, so have them try again later
+                throw new AuthenticationFailedException("error.server_busy");
+            }
             if (!matched) {
                 throw new InvalidPasswordException("error.invalid_password");
             }
@@ -85,6 +92,9 @@ public class OOOUserManager extends UserManager
     {
         super.init(config, conprov, pruneQueue);
 
+        // load our password hashing parameters
+        Crypto.configure(config);
+
         // create the blast repository
         _blastRepo = new GameBlastAuxRepository(conprov);
 
@@ -95,9 +105,28 @@ public class OOOUserManager extends UserManager
                 "Restricted pages will behave strangely.");
         }
 
-        // load up our affiliate tag mappings
-        for (AffiliateTag sub : getRepository().loadAffiliateTags()) {
-            _tagMap.put(sub.tag, sub.tagId);
+        // load up our affiliate tag mappings and periodically pick up tags registered elsewhere
+        _tags.refresh();
+        _tagRefresher = new Interval(pruneQueue == null ? Interval.RUN_DIRECT : pruneQueue) {
+            @Override public void expired () {
+                try {
+                    _tags.refresh();
+                } catch (PersistenceException pe) {
+                    log.warning("Failed to refresh affiliate tags", pe);
+                }
+            }
+        };
+        _tagRefresher.schedule(TAG_REFRESH_INTERVAL, true);
+    }
+
+    @Override
+    public void shutdown ()
+    {
+        super.shutdown();
+
+        // cancel our affiliate tag refresher
+        if (_tagRefresher != null) {
+            _tagRefresher.cancel();
         }
     }
 
@@ -117,17 +146,8 @@ public class OOOUserManager extends UserManager
      */
     public int getAffiliateTagId (String tag)
     {
-        // if we've already mapped this value, we're good to go
-        Integer tagId = _tagMap.get(tag);
-        if (tagId != null) {
-            return tagId;
-        }
-
-        // register a new affiliate tag and add it to our mappings
         try {
-            tagId = getRepository().registerAffiliateTag(tag);
-            _tagMap.put(tag, tagId);
-            return tagId;
+            return _tags.getTagId(tag);
 
         } catch (PersistenceException pe) {
             log.warning("Failed to register new affiliate tag '" + tag + "'.", pe);
@@ -142,14 +162,7 @@ public class OOOUserManager extends UserManager
      */
     public String getAffiliateTagString (int tagId)
     {
-        Integer theTagId = Integer.valueOf(tagId);
-
-        for (Map.Entry<String,Integer> entry : _tagMap.entrySet()) {
-            if (theTagId.equals(entry.getValue())) {
-                return entry.getKey();
-            }
-        }
-        return null;
+        return _tags.getTag(tagId);
     }
 
     /**
@@ -202,5 +215,23 @@ public class OOOUserManager extends UserManager
     protected String _accessDeniedURL;
 
     /** Maintains a mapping of affiliate tags. */
-    protected Map<String,Integer> _tagMap = Maps.newHashMap();
+    protected AffiliateTagRegistry<PersistenceException> _tags =
+        new AffiliateTagRegistry<PersistenceException>() {
+        @Override protected Map<String, Integer> loadTags () throws PersistenceException {
+            Map<String, Integer> tags = Maps.newHashMap();
+            for (AffiliateTag sub : getRepository().loadAffiliateTags()) {
+                tags.put(sub.tag, sub.tagId);
+            }
+            return tags;
+        }
+        @Override protected int registerTag (String tag) throws PersistenceException {
+            return getRepository().registerAffiliateTag(tag);
+        }
+    };
+
+    /** Periodically picks up affiliate tags registered by other servers. */
+    protected Interval _tagRefresher;
+
+    /** Refresh our affiliate tag mappings every ten minutes. */
+    protected static final long TAG_REFRESH_INTERVAL = 10L * 60L * 1000L;
 }
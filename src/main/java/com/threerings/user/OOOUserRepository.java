@@ -36,7 +36,6 @@ import com.samskivert.servlet.user.UserExistsException;
 import com.samskivert.servlet.user.UserRepository;
 import com.samskivert.servlet.user.Username;
 import com.samskivert.util.ArrayIntSet;
-import com.samskivert.util.ArrayUtil;
 import com.samskivert.util.Calendars;
 import com.samskivert.util.HashIntMap;
 import com.samskivert.util.IntIntMap;
@@ -1089,16 +1088,9 @@ public class OOOUserRepository extends UserRepository
             return ACCESS_GRANTED;
         }
 
-        // if we have never seen them before...
-        if (user.machIdents == null) {
-            // add their ident to the userobject and db
-            user.machIdents = new String[] { machIdent };
-            addUserIdent(user.userId, machIdent);
-
-        } else if (Arrays.binarySearch(user.machIdents, machIdent) < 0) {
-            // add the machIdent to the users list of associated idents
-            user.machIdents = ArrayUtil.append(user.machIdents, machIdent);
-            // and slap it in the db
+        // if we have never seen this ident for them before, add it to the user object (keeping
+        // its idents sorted) and slap it in the db
+        if (user.addMachIdent(machIdent)) {
             addUserIdent(user.userId, machIdent);
         }
 
@@ -3,26 +3,40 @@
 
 package com.threerings.user.depot;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 import com.samskivert.depot.ConnectionProvider;
+import com.samskivert.depot.DatabaseException;
 import com.samskivert.depot.DepotRepository;
+import com.samskivert.depot.Key;
+import com.samskivert.depot.KeySet;
 import com.samskivert.depot.Ops;
 import com.samskivert.depot.PersistenceContext;
 import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.Query;
+import com.samskivert.depot.Transaction;
+import com.samskivert.depot.clause.SelectClause;
 import com.samskivert.depot.clause.Where;
+import com.samskivert.depot.expression.SQLExpression;
+import com.samskivert.depot.impl.DepotMarshaller;
+import com.samskivert.depot.impl.Modifier;
+import com.samskivert.depot.impl.jdbc.DatabaseLiaison;
 
+import com.samskivert.util.Interval;
+import com.samskivert.util.RunQueue;
 import com.samskivert.util.StringUtil;
 
 import com.threerings.user.AccountAction;
@@ -55,10 +69,9 @@ public class AccountActionRepository extends DepotRepository
      * Return the list of actions that have not yet been processed by the specified server.
      * Returns all actions if no server name is specified.
      *
-     * <em>Note:</em> this method has two side effects: the first time it is called, it will
-     * register this server as a action participant (assuming server is non-null) and
-     * subsequently, it will call {@link #pruneActions} if it has not done so within the last
-     * hour.
+     * <em>Note:</em> the first time this method is called, it will register this server as a
+     * action participant (assuming server is non-null). Fully processed actions are only pruned
+     * once {@link #schedulePruning} has been called.
      */
     public List<AccountAction> getActions (String server)
     {
@@ -66,24 +79,32 @@ public class AccountActionRepository extends DepotRepository
     }
 
     /**
-     * Return the list of actions that have not yet been processed by the specified server.
-     * Returns all actions if no server name is specified.
+     * Return the list of actions that have not yet been processed by the specified server,
+     * ordered by action id. Returns all actions if no server name is specified. The actions are
+     * loaded with a single query that anti-joins against the processed actions table, so its cost
+     * does not depend on how many actions the server has already processed.
      *
      * @param maxActions the maximum number of actions to return.
      *
-     * <em>Note:</em> this method has two side effects: the first time it is called, it will
-     * register this server as a action participant (assuming server is non-null) and
-     * subsequently, it will call {@link #pruneActions} if it has not done so within the last
-     * hour.
+     * <em>Note:</em> the first time this method is called, it will register this server as a
+     * action participant (assuming server is non-null). Fully processed actions are only pruned
+     * once {@link #schedulePruning} has been called.
      */
     public List<AccountAction> getActions (String server, int maxActions)
     {
-        // TODO: Figure out how to do this in one query
-        List<Integer> processedIds = from(ProcessedActionRecord.class)
-            .where(ProcessedActionRecord.SERVER.eq(server))
-            .select(ProcessedActionRecord.ACTION_ID);
-        List<AccountActionRecord> actions = findAll(AccountActionRecord.class,
-                new Where(Ops.not(AccountActionRecord.ACTION_ID.in(processedIds))));
+        Query<AccountActionRecord> query = from(AccountActionRecord.class).noCache()
+            .ascending(AccountActionRecord.ACTION_ID);
+        if (!StringUtil.isBlank(server)) {
+            SelectClause processed = new SelectClause(ProcessedActionRecord.class,
+                new SQLExpression<?>[] { ProcessedActionRecord.ACTION_ID },
+                new Where(ProcessedActionRecord.ACTION_ID.eq(AccountActionRecord.ACTION_ID),
+                          ProcessedActionRecord.SERVER.eq(server)));
+            query = query.where(Ops.not(Ops.exists(processed)));
+        }
+        if (maxActions < Integer.MAX_VALUE) {
+            query = query.limit(maxActions);
+        }
+        List<AccountActionRecord> actions = query.select();
 
         List<AccountAction> list = Lists.newArrayListWithCapacity(actions.size());
         for (AccountActionRecord record : actions) {
@@ -96,14 +117,9 @@ public class AccountActionRepository extends DepotRepository
 
         // if this is the first time this method is called, register ourselves
         // with the action system
-        long now = System.currentTimeMillis();
-        if (_lastActionPrune == 0L) {
-            _lastActionPrune = now;
+        if (!_registered) {
+            _registered = true;
             registerActionServer(server);
-
-        } else if (now - _lastActionPrune > ACTION_PRUNE_INTERVAL) {
-            _lastActionPrune = now;
-            pruneActions();
         }
         return list;
     }
@@ -138,17 +154,23 @@ public class AccountActionRepository extends DepotRepository
      */
     public void addAction (String accountName, String data, int action, final String server)
     {
-        AccountActionRecord record = new AccountActionRecord();
+        final AccountActionRecord record = new AccountActionRecord();
         record.accountName = accountName;
         record.data = data;
         record.action = action;
         record.entered = new Timestamp(System.currentTimeMillis());
-        insert(record);
-
-        // note that it was processed by this server if appropriate
-        if (!StringUtil.isBlank(server)) {
-            noteProcessed(record.actionId, server);
+        if (StringUtil.isBlank(server)) {
+            insert(record);
+            return;
         }
+
+        // insert the action and note that it was processed by this server in one transaction
+        Transaction.perform(_ctx, new Runnable() {
+            public void run () {
+                insert(record);
+                noteProcessed(Collections.singletonList(record.actionId), server);
+            }
+        });
     }
 
     /**
@@ -160,13 +182,30 @@ public class AccountActionRepository extends DepotRepository
     }
 
     /**
-     * Batch update a list of actions.
+     * Batch update a list of actions. The processed records are inserted in one transaction using
+     * multi-row inserts of at most {@link #INSERT_BATCH_SIZE} rows each.
      */
-    public void updateActions (List<AccountAction> actions, String server)
+    public void updateActions (List<AccountAction> actions, final String server)
     {
-        for (int ii = 0, ll = actions.size(); ii < ll; ii++) {
-            noteProcessed(actions.get(ii).actionId, server);
+        if (actions.isEmpty()) {
+            return;
+        }
+        final List<Integer> actionIds = Lists.newArrayListWithCapacity(actions.size());
+        for (AccountAction action : actions) {
+            actionIds.add(action.actionId);
+        }
+        if (actionIds.size() <= INSERT_BATCH_SIZE) {
+            noteProcessed(actionIds, server);
+            return;
         }
+
+        Transaction.perform(_ctx, new Runnable() {
+            public void run () {
+                for (List<Integer> batch : Iterables.partition(actionIds, INSERT_BATCH_SIZE)) {
+                    noteProcessed(batch, server);
+                }
+            }
+        });
     }
 
     /**
@@ -191,39 +230,142 @@ public class AccountActionRepository extends DepotRepository
     }
 
     /**
-     * Prunes actions that have been processed by all registered servers to keep the actions table
-     * small. This method need not be called by hand as it is called automatically by
-     * {@link #getActions(String,int)}, but no more frequently than once an hour.
+     * Notes that the specified server has processed the specified actions, using a single
+     * multi-row insert. Callers are responsible for bounding the number of actions.
      */
-    public void pruneActions ()
+    protected void noteProcessed (final List<Integer> actionIds, final String server)
     {
-        Set<String> servers = loadActionServers();
-        Map<Integer, Set<String>> procmap = Maps.newHashMap();
-        Set<Integer> actids = Sets.newHashSet();
-
-        // determine which servers have processed which actions
-        for (ProcessedActionRecord record : findAll(ProcessedActionRecord.class)) {
-            Set<String> procset = procmap.get(record.actionId);
-            if (procset == null) {
-                procmap.put(record.actionId, procset = Sets.newHashSet());
+        List<Key<ProcessedActionRecord>> keys = Lists.newArrayListWithCapacity(actionIds.size());
+        for (int actionId : actionIds) {
+            keys.add(ProcessedActionRecord.getKey(actionId, server));
+        }
+        DepotMarshaller<ProcessedActionRecord> marsh =
+            _ctx.getMarshaller(ProcessedActionRecord.class);
+        final String table = marsh.getTableName();
+        final String idCol = marsh.getFieldMarshaller(
+            ProcessedActionRecord.ACTION_ID.name).getColumnName();
+        final String serverCol = marsh.getFieldMarshaller(
+            ProcessedActionRecord.SERVER.name).getColumnName();
+        _ctx.invoke(new Modifier(KeySet.newKeySet(ProcessedActionRecord.class, keys)) {
+            @Override protected int invoke (Connection conn, DatabaseLiaison liaison)
+                throws SQLException {
+                StringBuilder query = new StringBuilder("insert into ")
+                    .append(liaison.tableSQL(table)).append(" (")
+                    .append(liaison.columnSQL(idCol)).append(", ")
+                    .append(liaison.columnSQL(serverCol)).append(") values ");
+                for (int ii = 0, ll = actionIds.size(); ii < ll; ii++) {
+                    query.append(ii == 0 ? "(?, ?)" : ", (?, ?)");
+                }
+                PreparedStatement stmt = conn.prepareStatement(query.toString());
+                try {
+                    int idx = 1;
+                    for (int actionId : actionIds) {
+                        stmt.setInt(idx++, actionId);
+                        stmt.setString(idx++, server);
+                    }
+                    return stmt.executeUpdate();
+                } finally {
+                    stmt.close();
+                }
             }
-            procset.add(record.server);
+        });
+    }
+
+    /**
+     * Prunes actions that have been processed by all registered servers to keep the actions table
+     * small. This method need not be called by hand as it is called periodically once
+     * {@link #schedulePruning} has been called.
+     *
+     * <p> The fully processed actions are found by the database (as those for which no registered
+     * server lacks a processed record) and deleted, along with their processed records, in chunks
+     * of at most {@link #PRUNE_CHUNK_SIZE} actions, each chunk in its own transaction. A run stops
+     * after {@link #PRUNE_BUDGET_MILLIS}, leaving any remaining actions to the next run.
+     *
+     * @return the number of actions that were pruned.
+     */
+    public int pruneActions ()
+    {
+        // if no servers are registered, we have no way of knowing who has processed what
+        if (loadActionServers().isEmpty()) {
+            return 0;
         }
 
-        // determine which of those have been fully processed
-        for (Map.Entry<Integer, Set<String>> entry : procmap.entrySet()) {
-            if (entry.getValue().containsAll(servers)) {
-                actids.add(entry.getKey());
+        SelectClause processed = new SelectClause(ProcessedActionRecord.class,
+            new SQLExpression<?>[] { ProcessedActionRecord.ACTION_ID },
+            new Where(ProcessedActionRecord.ACTION_ID.eq(AccountActionRecord.ACTION_ID),
+                      ProcessedActionRecord.SERVER.eq(ActionServerRecord.SERVER)));
+        SelectClause unprocessed = new SelectClause(ActionServerRecord.class,
+            new SQLExpression<?>[] { ActionServerRecord.SERVER },
+            new Where(Ops.not(Ops.exists(processed))));
+        SQLExpression<Boolean> fullyProcessed = Ops.not(Ops.exists(unprocessed));
+
+        long start = System.currentTimeMillis();
+        int pruned = 0, chunks = 0;
+        while (true) {
+            final List<Integer> actionIds = from(AccountActionRecord.class).noCache()
+                .where(fullyProcessed).limit(PRUNE_CHUNK_SIZE)
+                .select(AccountActionRecord.ACTION_ID);
+            if (actionIds.isEmpty()) {
+                break;
+            }
+            // delete the actions and their processed records together so that neither is orphaned
+            Transaction.perform(_ctx, new Runnable() {
+                public void run () {
+                    KeySet<AccountActionRecord> keys =
+                        KeySet.newSimpleKeySet(AccountActionRecord.class, actionIds);
+                    deleteAll(AccountActionRecord.class, keys, keys);
+                    deleteAll(ProcessedActionRecord.class,
+                              new Where(ProcessedActionRecord.ACTION_ID.in(actionIds)));
+                }
+            });
+            pruned += actionIds.size();
+            chunks++;
+            if (actionIds.size() < PRUNE_CHUNK_SIZE ||
+                System.currentTimeMillis() - start >= PRUNE_BUDGET_MILLIS) {
+                break;
             }
         }
 
-        // now wipe out the actions (and processed entries for all actions that have been fully
-        // processed
-        if (actids.size() > 0) {
-            deleteAll(AccountActionRecord.class,
-                    new Where(AccountActionRecord.ACTION_ID.in(actids)));
-            deleteAll(ProcessedActionRecord.class,
-                    new Where(ProcessedActionRecord.ACTION_ID.in(actids)));
+        if (pruned > 0) {
+            log.info("Pruned processed actions", "pruned", pruned, "chunks", chunks,
+                     "elapsed", System.currentTimeMillis() - start);
+        }
+        return pruned;
+    }
+
+    /**
+     * Starts pruning fully processed actions once an hour. Servers that process actions should
+     * call this once, with a run queue, as pruning is not started automatically. Has no effect if
+     * pruning has already been scheduled.
+     *
+     * @param pruneQueue the run queue on which to prune, or null to prune on the shared interval
+     * thread (which is best avoided).
+     */
+    public synchronized void schedulePruning (RunQueue pruneQueue)
+    {
+        if (_pruner != null) {
+            return;
+        }
+        _pruner = new Interval(pruneQueue == null ? Interval.RUN_DIRECT : pruneQueue) {
+            @Override public void expired () {
+                try {
+                    pruneActions();
+                } catch (DatabaseException de) {
+                    log.warning("Failure auto-pruning actions", de);
+                }
+            }
+        };
+        _pruner.schedule(ACTION_PRUNE_INTERVAL, true);
+    }
+
+    /**
+     * Stops the periodic pruning of actions, if it was scheduled.
+     */
+    public synchronized void shutdown ()
+    {
+        if (_pruner != null) {
+            _pruner.cancel();
+            _pruner = null;
         }
     }
 
@@ -266,9 +408,21 @@ public class AccountActionRepository extends DepotRepository
         classes.add(ProcessedActionRecord.class);
     }
 
-    /** Used by {@link #getActions(String)}. */
-    protected long _lastActionPrune;
+    /** Set once {@link #getActions(String,int)} has registered our server. */
+    protected volatile boolean _registered;
+
+    /** Periodically prunes fully processed actions, once scheduled. */
+    protected Interval _pruner;
 
     /** We automatically prune the actions table once an hour. */
     protected static final long ACTION_PRUNE_INTERVAL = 60 * 60 * 1000L;
+
+    /** The maximum number of rows we insert with a single statement. */
+    protected static final int INSERT_BATCH_SIZE = 500;
+
+    /** The maximum number of actions we prune with a single statement. */
+    protected static final int PRUNE_CHUNK_SIZE = 500;
+
+    /** The maximum time spent on a single pruning run. */
+    protected static final long PRUNE_BUDGET_MILLIS = 30 * 1000L;
 }
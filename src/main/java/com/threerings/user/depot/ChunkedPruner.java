@@ -0,0 +1,124 @@
+//
+// $Id$
+
+package com.threerings.user.depot;
+
+import java.util.List;
+
+import com.samskivert.depot.DepotRepository;
+import com.samskivert.depot.Key;
+import com.samskivert.depot.KeySet;
+import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.expression.SQLExpression;
+
+import static com.threerings.user.Log.log;
+
+/**
+ * Deletes stale records in bounded chunks rather than with a single unbounded delete. Each chunk
+ * selects the primary keys of at most {@code chunkSize} matching records and deletes exactly
+ * those records, so no single statement holds locks on more than a chunk's worth of rows. We
+ * pause between chunks to let other work through and stop once the per-run time budget is used
+ * up; anything left over is picked up on the next run.
+ *
+ * <p> Note that the pauses happen on the calling thread, so a pruner should only be invoked from
+ * a thread that can afford to block for up to the time budget.
+ */
+public class ChunkedPruner
+{
+    /** The results of a single pruning run. */
+    public static class Result
+    {
+        /** The type of record that was pruned. */
+        public final Class<? extends PersistentRecord> type;
+
+        /** The number of records deleted. */
+        public final int removed;
+
+        /** The number of chunks in which those records were deleted. */
+        public final int chunks;
+
+        /** The number of milliseconds spent pruning, including pauses. */
+        public final long elapsed;
+
+        /** True if all matching records were deleted, false if we ran out of time. */
+        public final boolean complete;
+
+        public Result (Class<? extends PersistentRecord> type, int removed, int chunks,
+                       long elapsed, boolean complete) {
+            this.type = type;
+            this.removed = removed;
+            this.chunks = chunks;
+            this.elapsed = elapsed;
+            this.complete = complete;
+        }
+
+        @Override // from Object
+        public String toString () {
+            return "[type=" + type.getSimpleName() + ", removed=" + removed + ", chunks=" + chunks +
+                ", elapsed=" + elapsed + "ms, complete=" + complete + "]";
+        }
+    }
+
+    /**
+     * Creates a pruner.
+     *
+     * @param chunkSize the maximum number of records to delete with a single statement.
+     * @param pauseMillis the number of milliseconds to pause between chunks.
+     * @param budgetMillis the maximum number of milliseconds to spend on a single run.
+     */
+    public ChunkedPruner (int chunkSize, long pauseMillis, long budgetMillis)
+    {
+        _chunkSize = chunkSize;
+        _pauseMillis = pauseMillis;
+        _budgetMillis = budgetMillis;
+    }
+
+    /**
+     * Deletes records of the specified type that match the supplied condition.
+     */
+    public <T extends PersistentRecord> Result prune (
+        DepotRepository repo, Class<T> type, SQLExpression<Boolean> where)
+    {
+        long start = System.currentTimeMillis();
+        int removed = 0, chunks = 0;
+        boolean complete = false;
+        while (true) {
+            List<Key<T>> keys = repo.from(type).noCache().where(where).limit(_chunkSize)
+                .selectKeys(false);
+            if (!keys.isEmpty()) {
+                KeySet<T> keyset = KeySet.newKeySet(type, keys);
+                removed += repo.deleteAll(type, keyset, keyset);
+                chunks++;
+            }
+            if (keys.size() < _chunkSize) {
+                complete = true;
+                break;
+            }
+            if (System.currentTimeMillis() - start + _pauseMillis >= _budgetMillis) {
+                break;
+            }
+            try {
+                Thread.sleep(_pauseMillis);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        Result result = new Result(
+            type, removed, chunks, System.currentTimeMillis() - start, complete);
+        if (removed > 0 || !complete) {
+            log.info("Pruned stale records", "result", result);
+        }
+        return result;
+    }
+
+    /** The maximum number of records deleted by a single statement. */
+    protected int _chunkSize;
+
+    /** The number of milliseconds to pause between chunks. */
+    protected long _pauseMillis;
+
+    /** The maximum number of milliseconds to spend on a single run. */
+    protected long _budgetMillis;
+}
@@ -5,12 +5,16 @@ package com.threerings.user.depot;
 
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import jakarta.servlet.http.Cookie;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import com.samskivert.depot.ConnectionProvider;
 import com.samskivert.depot.DatabaseException;
@@ -29,6 +33,9 @@ import com.samskivert.util.RunQueue;
 import com.samskivert.util.StringUtil;
 import com.samskivert.util.Tuple;
 
+import com.threerings.user.AffiliateTagRegistry;
+import com.threerings.user.Crypto;
+import com.threerings.user.HashingPool;
 import com.threerings.user.OOOUser;
 
 import static com.threerings.user.Log.log;
@@ -61,7 +68,8 @@ public class DepotUserManager
 
     /**
      * An authenticator that requires that the user-supplied password match the actual user
-     * password.
+     * password. Argon2 hashed passwords are checked on the {@link Crypto#getHashingPool hashing
+     * pool}; if that pool is saturated, authentication fails with <code>error.server_busy</code>.
      */
     public static class PasswordAuthenticator implements Authenticator
     {
@@ -69,10 +77,29 @@ public class DepotUserManager
         public void authenticateUser (User user, String username, Password password)
             throws AuthenticationFailedException
         {
-            if (!user.passwordsMatch(password)) {
+            if (!passwordsMatch(user, password)) {
                 throw new InvalidPasswordException("error.invalid_password");
             }
         }
+
+        protected boolean passwordsMatch (User user, Password password)
+            throws AuthenticationFailedException
+        {
+            if (!(user instanceof OOOUser) || !((OOOUser)user).isArgon2Hashed()) {
+                return user.passwordsMatch(password);
+            }
+            // a wrapped legacy hash is checked against the legacy hash of the supplied password,
+            // so it matches whether or not the password was supplied in cleartext
+            OOOUser ouser = (OOOUser)user;
+            if (password.getCleartext() == null && !ouser.isWrapped()) {
+                return user.passwordsMatch(password);
+            }
+            try {
+                return ouser.checkPassword(password);
+            } catch (RejectedExecutionException ree) {
+                throw new AuthenticationFailedException("error.server_busy");
+            }
+        }
     }
 
     /**
@@ -125,6 +152,70 @@ public class DepotUserManager
      * The <code>%R</code> will be replaced with the URL encoded URL the user is currently
      * requesting (complete with query parameters) so that the login code can redirect the user
      * back to this request once they are authenticated.
+     *
+     * <li><code>session_cache.size</code>: If set to a positive value, up to that many sessions
+     * will be cached in memory so that authenticated requests can be resolved without going to
+     * the database. <code>session_cache.expire_secs</code> controls how long a session remains
+     * cached (defaults to 60 seconds).
+     *
+     * <li><code>session_refresh.flush_secs</code>: If set to a positive value, session expiry
+     * refreshes that would not change the stored expiry date are skipped and the remainder are
+     * written in batches at this interval (on the prune queue, if one is supplied).
+     *
+     * <li><code>session_prune.chunk_size</code>: If set to a positive value, expired sessions are
+     * pruned in chunks of at most this many rows rather than with a single delete.
+     * <code>session_prune.pause_millis</code> (default 100) controls the pause between chunks and
+     * <code>session_prune.budget_secs</code> (default 30) limits the time spent on each run.
+     *
+     * <li><code>hashing.queue_size</code>: Password hashing always runs on a bounded pool (see
+     * {@link Crypto#getHashingPool}), which rejects logins when its queue is full. If set to a
+     * positive value, this sizes that queue in place of the default of 256 operations.
+     * <code>hashing.concurrency</code> then sets the number of concurrent operations; if unset, it
+     * is derived from <code>hashing.memory_budget_mb</code> (default 512) and the processor count.
+     *
+     * <li><code>hashing.iterations</code>, <code>hashing.memory_kb</code> and
+     * <code>hashing.parallelism</code>: The Argon2 parameters used for new password hashes (see
+     * {@link Crypto#configure}). Passwords hashed with other parameters are rehashed on login.
+     * Use {@link com.threerings.user.tools.HashCalibrationTool} to choose them.
+     *
+     * <li><code>password_rehash.max_pending</code>: The maximum number of outdated password hashes
+     * being upgraded in the background after login at any one time (default 1000). Set to 0 to
+     * disable background rehashing.
+     *
+     * <li><code>ident_index.reload_secs</code>: If set to a positive value, the tainted and banned
+     * machine idents are indexed in memory so that clean idents can be validated without going to
+     * the database, and the index is reloaded at this interval (on the prune queue, if one is
+     * supplied) to pick up idents tainted or banned by other servers.
+     *
+     * <li><code>ident_recorder.flush_secs</code>: If set to a positive value, the machine idents
+     * reported by users during validation are queued and written in batches at this interval (on
+     * the prune queue, if one is supplied) rather than as they are reported.
+     * <code>ident_recorder.max_pending</code> (default 10000) limits the number queued; beyond
+     * that they are written immediately.
+     *
+     * <li><code>free_account_counts.rebuild_hours</code>: If set to a positive value, the
+     * per-machine free account counts are rebuilt from scratch, a day at a time, at this interval
+     * (on the prune queue, if one is supplied) to correct any drift. The counts are maintained
+     * only by {@link DepotUserRepository}, so deployments that also write users or idents via the
+     * legacy {@link com.threerings.user.OOOUserRepository} should enable this, but on only one
+     * server, as every server's rebuild covers the whole table.
+     *
+     * <li><code>user_tokens.rebuild_hours</code>: If set to a positive value, the token table
+     * consulted by {@link DepotUserRepository#getTokenUsernames} and {@link
+     * DepotUserRepository#loadUserIdsWithToken} is rebuilt from the user table at this interval
+     * (on the prune queue, if one is supplied). The table is maintained only by {@link
+     * DepotUserRepository}, so deployments that also grant or revoke tokens via the legacy {@link
+     * com.threerings.user.OOOUserRepository} should enable this, on only one server.
+     *
+     * <li><code>coin_filter.threads</code>: If set to a positive value, large username sets
+     * passed to {@link DepotUserRepository#filterCoinBuyers} are looked up in chunks run in
+     * parallel on this many threads (and thus database connections).
+     *
+     * <li><code>user_bitmaps.rebuild_hours</code>: If set to a positive value, the ids of all users
+     * are indexed in memory by flag, Yohoho billing status and site so that marketing segments
+     * can be counted without scanning the user table (see {@link UserBitmapIndex}), and the index
+     * is rebuilt at this interval (on the prune queue, if one is supplied) to pick up changes made
+     * by other servers.
      * </ul>
      *
      * @param config the user manager configuration properties.
@@ -150,6 +241,118 @@ public class DepotUserManager
         // create the user repository
         _repository = createRepository(pctx);
 
+        // set up our session cache if one was requested
+        int cacheSize = Integer.parseInt(config.getProperty("session_cache.size", "0"));
+        if (cacheSize > 0) {
+            long expireSecs = Long.parseLong(config.getProperty(
+                "session_cache.expire_secs", String.valueOf(SESSION_CACHE_EXPIRE_SECS)));
+            _repository.setSessionCache(new SessionCache(cacheSize, expireSecs * 1000L));
+        }
+
+        // set up our session refresher if one was requested
+        int flushSecs = Integer.parseInt(config.getProperty("session_refresh.flush_secs", "0"));
+        if (flushSecs > 0) {
+            _repository.setSessionRefresher(
+                new SessionRefresher(_repository, pruneQueue, flushSecs * 1000L));
+        }
+
+        // set up chunked session pruning if it was requested
+        int chunkSize = Integer.parseInt(config.getProperty("session_prune.chunk_size", "0"));
+        if (chunkSize > 0) {
+            long pauseMillis = Long.parseLong(config.getProperty(
+                "session_prune.pause_millis", String.valueOf(SESSION_PRUNE_PAUSE_MILLIS)));
+            long budgetSecs = Long.parseLong(config.getProperty(
+                "session_prune.budget_secs", String.valueOf(SESSION_PRUNE_BUDGET_SECS)));
+            _repository.setPruner(new ChunkedPruner(chunkSize, pauseMillis, budgetSecs * 1000L));
+        }
+
+        // load our password hashing parameters and size the hashing pool if so configured
+        Crypto.configure(config);
+        int hashQueue = Integer.parseInt(config.getProperty("hashing.queue_size", "0"));
+        if (hashQueue > 0) {
+            int concurrency = Integer.parseInt(config.getProperty("hashing.concurrency", "0"));
+            if (concurrency <= 0) {
+                long budgetMB = Long.parseLong(config.getProperty(
+                    "hashing.memory_budget_mb", String.valueOf(HASHING_MEMORY_BUDGET_MB)));
+                concurrency = HashingPool.computeConcurrency(budgetMB * 1024);
+            }
+            Crypto.setHashingPool(new HashingPool(concurrency, hashQueue));
+        }
+
+        // upgrade outdated password hashes in the background as users log in
+        int maxRehashes = Integer.parseInt(config.getProperty(
+            "password_rehash.max_pending", String.valueOf(REHASH_MAX_PENDING)));
+        if (maxRehashes > 0) {
+            _rehasher = new PasswordRehasher(_repository, maxRehashes);
+        }
+
+        // index the tainted and banned idents if requested
+        int reloadSecs = Integer.parseInt(config.getProperty("ident_index.reload_secs", "0"));
+        if (reloadSecs > 0) {
+            IdentIndex index = new IdentIndex(_repository, pruneQueue, reloadSecs * 1000L);
+            index.reload();
+            _repository.setIdentIndex(index);
+        }
+
+        // record new machine idents in batches if requested
+        int identFlushSecs = Integer.parseInt(config.getProperty("ident_recorder.flush_secs", "0"));
+        if (identFlushSecs > 0) {
+            int maxPending = Integer.parseInt(config.getProperty(
+                "ident_recorder.max_pending", String.valueOf(IDENT_RECORDER_MAX_PENDING)));
+            _repository.setIdentRecorder(new IdentRecorder(
+                _repository, pruneQueue, identFlushSecs * 1000L, maxPending));
+        }
+
+        // periodically rebuild the free account counts if requested
+        long rebuildHours = Long.parseLong(
+            config.getProperty("free_account_counts.rebuild_hours", "0"));
+        if (rebuildHours > 0) {
+            _countRebuilder = new Interval(pruneQueue == null ? Interval.RUN_DIRECT : pruneQueue) {
+                @Override public void expired () {
+                    try {
+                        int counts = _repository.rebuildFreeAccountCounts();
+                        log.info("Rebuilt free account counts", "counts", counts);
+                    } catch (DatabaseException de) {
+                        log.warning("Failed to rebuild free account counts", de);
+                    }
+                }
+            };
+            _countRebuilder.schedule(rebuildHours * 60L * 60L * 1000L, true);
+        }
+
+        // periodically rebuild the token table if requested
+        long tokenHours = Long.parseLong(config.getProperty("user_tokens.rebuild_hours", "0"));
+        if (tokenHours > 0) {
+            _tokenRebuilder = new Interval(pruneQueue == null ? Interval.RUN_DIRECT : pruneQueue) {
+                @Override public void expired () {
+                    try {
+                        _repository.rebuildUserTokens();
+                        log.info("Rebuilt user tokens");
+                    } catch (DatabaseException de) {
+                        log.warning("Failed to rebuild user tokens", de);
+                    }
+                }
+            };
+            _tokenRebuilder.schedule(tokenHours * 60L * 60L * 1000L, true);
+        }
+
+        // index users by flag, billing status and site if requested
+        long bitmapHours = Long.parseLong(config.getProperty("user_bitmaps.rebuild_hours", "0"));
+        if (bitmapHours > 0) {
+            UserBitmapIndex bitmaps = new UserBitmapIndex(
+                _repository, pruneQueue, bitmapHours * 60L * 60L * 1000L);
+            bitmaps.rebuild();
+            _repository.setBitmapIndex(bitmaps);
+        }
+
+        // run the chunks of large coin buyer lookups in parallel if requested
+        int filterThreads = Integer.parseInt(config.getProperty("coin_filter.threads", "0"));
+        if (filterThreads > 0) {
+            _queryExecutor = Executors.newFixedThreadPool(filterThreads, new ThreadFactoryBuilder()
+                .setNameFormat("coin-filter-%d").setDaemon(true).build());
+            _repository.setQueryExecutor(_queryExecutor);
+        }
+
         // fetch the login URL from the properties
         _loginURL = config.getProperty("login_url");
         if (_loginURL == null) {
@@ -182,16 +385,70 @@ public class DepotUserManager
                 "Restricted pages will behave strangely.");
         }
 
-        // load up our affiliate tag mappings
-        for (AffiliateTagRecord sub : getRepository().loadAffiliateTags()) {
-            _tagMap.put(sub.tag, sub.tagId);
-        }
+        // load up our affiliate tag mappings and periodically pick up tags registered elsewhere
+        _tags.refresh();
+        _tagRefresher = new Interval(pruneQueue == null ? Interval.RUN_DIRECT : pruneQueue) {
+            @Override public void expired () {
+                try {
+                    _tags.refresh();
+                } catch (DatabaseException de) {
+                    log.warning("Failed to refresh affiliate tags", de);
+                }
+            }
+        };
+        _tagRefresher.schedule(TAG_REFRESH_INTERVAL, true);
     }
 
     public void shutdown ()
     {
-        // cancel our session table pruning thread
+        // cancel our session table pruning thread and affiliate tag refresher
         _pruner.cancel();
+        _tagRefresher.cancel();
+
+        // write out any session refreshes that are still pending
+        SessionRefresher refresher = _repository.getSessionRefresher();
+        if (refresher != null) {
+            refresher.shutdown();
+        }
+
+        // write out any machine idents that are still queued
+        IdentRecorder recorder = _repository.getIdentRecorder();
+        if (recorder != null) {
+            recorder.shutdown();
+        }
+
+        // stop the threads on which we run large queries
+        if (_queryExecutor != null) {
+            _repository.setQueryExecutor(null);
+            _queryExecutor.shutdown();
+        }
+
+        // write out any password rehashes that are still pending
+        if (_rehasher != null) {
+            _rehasher.shutdown();
+        }
+
+        // stop rebuilding our free account counts
+        if (_countRebuilder != null) {
+            _countRebuilder.cancel();
+        }
+
+        // stop rebuilding our token table
+        if (_tokenRebuilder != null) {
+            _tokenRebuilder.cancel();
+        }
+
+        // stop reloading our ident index
+        IdentIndex index = _repository.getIdentIndex();
+        if (index != null) {
+            index.shutdown();
+        }
+
+        // stop rebuilding our user bitmap index
+        UserBitmapIndex bitmaps = _repository.getBitmapIndex();
+        if (bitmaps != null) {
+            bitmaps.shutdown();
+        }
     }
 
     /**
@@ -210,16 +467,7 @@ public class DepotUserManager
      */
     public int getAffiliateTagId (String tag)
     {
-        // if we've already mapped this value, we're good to go
-        Integer tagId = _tagMap.get(tag);
-        if (tagId != null) {
-            return tagId;
-        }
-
-        // register a new affiliate tag and add it to our mappings
-        tagId = getRepository().registerAffiliateTag(tag);
-        _tagMap.put(tag, tagId);
-        return tagId;
+        return _tags.getTagId(tag);
     }
 
     /**
@@ -229,14 +477,28 @@ public class DepotUserManager
      */
     public String getAffiliateTagString (int tagId)
     {
-        Integer theTagId = Integer.valueOf(tagId);
+        return _tags.getTag(tagId);
+    }
 
-        for (Map.Entry<String,Integer> entry : _tagMap.entrySet()) {
-            if (theTagId.equals(entry.getValue())) {
-                return entry.getKey();
-            }
+    /**
+     * Returns the rehasher used to upgrade password hashes after login, or null if rehashing is
+     * disabled.
+     */
+    public PasswordRehasher getRehasher ()
+    {
+        return _rehasher;
+    }
+
+    /**
+     * Queues an upgrade of the user's password hash if it needs one. Only done for users whose
+     * password was actually checked.
+     */
+    protected void maybeRehash (OOOUser user, Password password, Authenticator auth)
+    {
+        if (_rehasher != null && auth instanceof PasswordAuthenticator &&
+                password.getCleartext() != null) {
+            _rehasher.maybeRehash(user, password.getCleartext().toCharArray());
         }
-        return null;
     }
 
     /**
@@ -365,6 +627,7 @@ public class DepotUserManager
 
         // run the user through the authentication gamut
         auth.authenticateUser(user, username, password);
+        maybeRehash(user, password, auth);
 
         // give them the necessary cookies and business
         effectLogin(user, persist, req, rsp);
@@ -397,6 +660,7 @@ public class DepotUserManager
 
         // run the user through the authentication gamut
         auth.authenticateUser(user, username, password);
+        maybeRehash(user, password, auth);
 
         // register a session for this user
         String authcode = _repository.registerSession(user, expires);
@@ -504,6 +768,18 @@ public class DepotUserManager
     /** The interval for user session pruning. */
     protected Interval _pruner;
 
+    /** Upgrades outdated password hashes after login, or null. */
+    protected PasswordRehasher _rehasher;
+
+    /** Periodically rebuilds the free account counts, or null. */
+    protected Interval _countRebuilder;
+
+    /** Periodically rebuilds the token table, or null. */
+    protected Interval _tokenRebuilder;
+
+    /** Runs the chunks of large queries in parallel, or null. */
+    protected ExecutorService _queryExecutor;
+
     /** The URL for the user login page. */
     protected String _loginURL;
 
@@ -511,7 +787,22 @@ public class DepotUserManager
     protected String _userAuthCookie = USERAUTH_COOKIE;
 
     /** Maintains a mapping of affiliate tags. */
-    protected Map<String,Integer> _tagMap = Maps.newHashMap();
+    protected AffiliateTagRegistry<DatabaseException> _tags =
+        new AffiliateTagRegistry<DatabaseException>() {
+        @Override protected Map<String, Integer> loadTags () {
+            Map<String, Integer> tags = Maps.newHashMap();
+            for (AffiliateTagRecord sub : getRepository().loadAffiliateTags()) {
+                tags.put(sub.tag, sub.tagId);
+            }
+            return tags;
+        }
+        @Override protected int registerTag (String tag) {
+            return getRepository().registerAffiliateTag(tag);
+        }
+    };
+
+    /** Periodically picks up affiliate tags registered by other servers. */
+    protected Interval _tagRefresher;
 
     /** The URL to which we redirect users whose access is denied. */
     protected String _accessDeniedURL;
@@ -522,6 +813,27 @@ public class DepotUserManager
     /** Prune the session table every hour. */
     protected static final long SESSION_PRUNE_INTERVAL = 60L * 60L * 1000L;
 
+    /** Refresh our affiliate tag mappings every ten minutes. */
+    protected static final long TAG_REFRESH_INTERVAL = 10L * 60L * 1000L;
+
+    /** The default limit on the number of queued machine idents. */
+    protected static final int IDENT_RECORDER_MAX_PENDING = 10000;
+
+    /** The default limit on the number of pending password rehashes. */
+    protected static final int REHASH_MAX_PENDING = 1000;
+
+    /** The default native memory budget used to size our hashing pool. */
+    protected static final long HASHING_MEMORY_BUDGET_MB = 512L;
+
+    /** The default number of seconds for which a session remains in our session cache. */
+    protected static final long SESSION_CACHE_EXPIRE_SECS = 60L;
+
+    /** The default pause between chunks when pruning sessions in chunks. */
+    protected static final long SESSION_PRUNE_PAUSE_MILLIS = 100L;
+
+    /** The default limit on the time spent on each chunked session pruning run. */
+    protected static final long SESSION_PRUNE_BUDGET_SECS = 30L;
+
     /** Indicates how long (in days) that a "persisting" session token should last. */
     protected static final int PERSIST_EXPIRE_DAYS = 30;
 
@@ -5,29 +5,53 @@ package com.threerings.user.depot;
 
 import static com.threerings.user.Log.log;
 
+import java.sql.Connection;
 import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+import java.util.function.ObjIntConsumer;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.samskivert.depot.CountRecord;
+import com.samskivert.depot.DataMigration;
+import com.samskivert.depot.DatabaseException;
 import com.samskivert.depot.DepotRepository;
 import com.samskivert.depot.DuplicateKeyException;
+import com.samskivert.depot.Exps;
 import com.samskivert.depot.Funcs;
+import com.samskivert.depot.Key;
+import com.samskivert.depot.KeySet;
 import com.samskivert.depot.Ops;
 import com.samskivert.depot.PersistenceContext;
 import com.samskivert.depot.PersistentRecord;
 import com.samskivert.depot.SchemaMigration;
 import com.samskivert.depot.StringFuncs;
+import com.samskivert.depot.Transaction;
 import com.samskivert.depot.annotation.Computed;
 import com.samskivert.depot.annotation.Entity;
 import com.samskivert.depot.clause.FieldOverride;
@@ -39,13 +63,18 @@ import com.samskivert.depot.clause.OrderBy;
 import com.samskivert.depot.clause.QueryClause;
 import com.samskivert.depot.clause.Where;
 import com.samskivert.depot.expression.ColumnExp;
+import com.samskivert.depot.expression.SQLExpression;
+import com.samskivert.depot.impl.Modifier;
+import com.samskivert.depot.impl.jdbc.DatabaseLiaison;
+import com.samskivert.depot.operator.Case;
 import com.samskivert.depot.util.Builder3;
+import com.samskivert.depot.util.Tuple2;
 import com.samskivert.io.PersistenceException;
 import com.samskivert.servlet.user.Password;
 import com.samskivert.servlet.user.UserExistsException;
 import com.samskivert.servlet.user.UserUtil;
 import com.samskivert.servlet.user.Username;
-import com.samskivert.util.ArrayUtil;
+import com.samskivert.util.ArrayIntSet;
 import com.samskivert.util.Calendars;
 import com.samskivert.util.HashIntMap;
 import com.samskivert.util.IntIntMap;
@@ -83,9 +112,136 @@ public class DepotUserRepository extends DepotRepository
         DEADBEAT;
     }
 
+    /** Receives the indexed fields of each user visited by {@link #scanUserStatus}. */
+    public interface UserStatusConsumer
+    {
+        void accept (int userId, int flags, byte yohoho, int siteId);
+    }
+
     @Inject public DepotUserRepository (PersistenceContext ctx)
     {
         super(ctx);
+
+        // build the free account counts from scratch for databases that predate them
+        registerMigration(new DataMigration("2026_10_18_freeAccountCounts") {
+            @Override public void invoke () {
+                rebuildFreeAccountCounts();
+            }
+        });
+
+        // populate the token table for databases that predate it
+        registerMigration(new DataMigration("2026_10_18_userTokens") {
+            @Override public void invoke () {
+                rebuildUserTokens();
+            }
+        });
+    }
+
+    /**
+     * Configures a cache that will be used to resolve users by session authcode without going to
+     * the database. Pass null to disable caching (the default).
+     */
+    public void setSessionCache (SessionCache cache)
+    {
+        _sessionCache = cache;
+    }
+
+    /**
+     * Returns the session cache in use by this repository, or null if none is configured.
+     */
+    public SessionCache getSessionCache ()
+    {
+        return _sessionCache;
+    }
+
+    /**
+     * Configures a refresher that will be used to coalesce and batch session expiry updates. Pass
+     * null to write every update immediately (the default).
+     */
+    public void setSessionRefresher (SessionRefresher refresher)
+    {
+        _refresher = refresher;
+    }
+
+    /**
+     * Returns the session refresher in use by this repository, or null if none is configured.
+     */
+    public SessionRefresher getSessionRefresher ()
+    {
+        return _refresher;
+    }
+
+    /**
+     * Configures an index that will be used to recognize clean machine idents without going to
+     * the database. The index must have been loaded. Pass null to check every ident against the
+     * database (the default).
+     */
+    public void setIdentIndex (IdentIndex index)
+    {
+        _identIndex = index;
+    }
+
+    /**
+     * Returns the ident index in use by this repository, or null if none is configured.
+     */
+    public IdentIndex getIdentIndex ()
+    {
+        return _identIndex;
+    }
+
+    /**
+     * Configures an index of users by flag, billing status and site that will be kept current as
+     * users are modified through this repository. The index must have been built. Pass null to
+     * maintain no index (the default).
+     */
+    public void setBitmapIndex (UserBitmapIndex index)
+    {
+        _bitmapIndex = index;
+    }
+
+    /**
+     * Returns the user bitmap index maintained by this repository, or null if none is configured.
+     */
+    public UserBitmapIndex getBitmapIndex ()
+    {
+        return _bitmapIndex;
+    }
+
+    /**
+     * Configures a recorder that will be used to write the machine idents reported during
+     * validation in batches, off of the login path. Pass null to write each one immediately (the
+     * default).
+     */
+    public void setIdentRecorder (IdentRecorder recorder)
+    {
+        _identRecorder = recorder;
+    }
+
+    /**
+     * Returns the ident recorder in use by this repository, or null if none is configured.
+     */
+    public IdentRecorder getIdentRecorder ()
+    {
+        return _identRecorder;
+    }
+
+    /**
+     * Configures an executor on which {@link #filterCoinBuyers} will run the chunks of large
+     * username collections in parallel. The executor's thread count bounds the number of
+     * connections used at once. Pass null to run them one after another (the default).
+     */
+    public void setQueryExecutor (ExecutorService exec)
+    {
+        _queryExecutor = exec;
+    }
+
+    /**
+     * Configures a pruner that will be used to delete expired sessions and validation records in
+     * bounded chunks. Pass null to delete them with a single statement (the default).
+     */
+    public void setPruner (ChunkedPruner pruner)
+    {
+        _pruner = pruner;
     }
 
     /**
@@ -132,6 +288,20 @@ public class DepotUserRepository extends DepotRepository
         return loadUsersFromId(userIds);
     }
 
+    /**
+     * Loads up all users in the supplied array of user ids, with a query per chunk of ids.
+     */
+    public HashIntMap<OOOUser> loadUsers (int[] userIds)
+    {
+        HashIntMap<OOOUser> users = new HashIntMap<OOOUser>();
+        for (List<Integer> chunk : Lists.partition(Ints.asList(userIds), MAX_USER_BATCH)) {
+            for (OOOUserRecord record : loadAll(OOOUserRecord.class, chunk)) {
+                users.put(record.userId, record.toUser());
+            }
+        }
+        return users;
+    }
+
     /**
      * Loads up all users with the specified email.
      */
@@ -157,6 +327,46 @@ public class DepotUserRepository extends DepotRepository
                 loadIdents);
     }
 
+    /**
+     * Looks up all of the users with the supplied usernames (compared case insensitively). See
+     * {@link #loadUsersByName(Collection,boolean)}.
+     */
+    public Map<String, OOOUser> loadUsersByName (Collection<String> usernames)
+    {
+        return loadUsersByName(usernames, false);
+    }
+
+    /**
+     * Looks up all of the users with the supplied usernames (compared case insensitively),
+     * using a query per chunk of names rather than one per name. Records are read through the
+     * record cache if one is configured.
+     *
+     * @param loadIdents if true, the users' machine identifiers are also loaded, using a query per
+     * chunk of users.
+     *
+     * @return a mapping from lower-cased username to user, for each supplied name for which a user
+     * exists.
+     */
+    public Map<String, OOOUser> loadUsersByName (Collection<String> usernames, boolean loadIdents)
+    {
+        Set<String> names = Sets.newHashSet();
+        for (String username : usernames) {
+            names.add(username.toLowerCase());
+        }
+        Map<String, OOOUser> users = Maps.newHashMap();
+        for (List<String> chunk : Iterables.partition(names, MAX_USER_BATCH)) {
+            for (OOOUserRecord record : from(OOOUserRecord.class).cacheRecords()
+                     .where(StringFuncs.lower(OOOUserRecord.USERNAME).in(chunk)).select()) {
+                OOOUser user = record.toUser();
+                users.put(user.username.toLowerCase(), user);
+            }
+        }
+        if (loadIdents) {
+            resolveIdents(users.values());
+        }
+        return users;
+    }
+
     /**
      * Looks up a user by email address.
      */
@@ -186,14 +396,30 @@ public class DepotUserRepository extends DepotRepository
      */
     public OOOUser loadUserBySession (String authcode, boolean loadIdents)
     {
-        SessionRecord sess = load(SessionRecord.getKey(authcode));
         // Check against the beginning of the day rather than right now because our database stores
         // only the expire date, but the user may have a valid cookie that doesn't expire until
         // later today.
         long expireTime = Calendars.now().zeroTime().toTime();
-        return (sess == null || sess.expires.getTime() < expireTime) ? null :
-            resolveIdents(toUser(load(OOOUserRecord.class,
-                                      OOOUserRecord.getKey(sess.userId))), loadIdents);
+
+        SessionCache cache = _sessionCache;
+        long stamp = 0L;
+        if (cache != null) {
+            OOOUser user = cache.get(authcode, expireTime);
+            if (user != null) {
+                return resolveIdents(user, loadIdents);
+            }
+            stamp = cache.stamp();
+        }
+
+        SessionRecord sess = load(SessionRecord.getKey(authcode));
+        if (sess == null || sess.expires.getTime() < expireTime) {
+            return null;
+        }
+        OOOUserRecord record = load(OOOUserRecord.class, OOOUserRecord.getKey(sess.userId));
+        if (record != null && cache != null) {
+            cache.put(stamp, sess, record);
+        }
+        return resolveIdents(toUser(record), loadIdents);
     }
 
     /**
@@ -220,7 +446,7 @@ public class DepotUserRepository extends DepotRepository
         if (authcode != null) {
             // figure out when to expire the session
             Date expires = Calendars.now().addDays(expireDays).toSQLDate();
-            updatePartial(SessionRecord.getKey(authcode), SessionRecord.EXPIRES, expires);
+            updateSessionExpiry(authcode, expires);
             return authcode;
 
         } else {
@@ -243,6 +469,11 @@ public class DepotUserRepository extends DepotRepository
         sess.userId = userId;
         sess.expires = Calendars.now().addDays(expireDays).toSQLDate();
         insert(sess);
+
+        SessionRefresher refresher = _refresher;
+        if (refresher != null) {
+            refresher.noteWritten(authcode, sess.expires);
+        }
     }
 
     /**
@@ -250,7 +481,15 @@ public class DepotUserRepository extends DepotRepository
      */
     public void clearSession (int userId)
     {
+        SessionRefresher refresher = _refresher;
+        if (refresher != null) {
+            for (String authcode : from(SessionRecord._R).where(SessionRecord.USER_ID, userId)
+                     .select(SessionRecord.AUTHCODE)) {
+                refresher.forget(authcode);
+            }
+        }
         from(SessionRecord._R).where(SessionRecord.USER_ID, userId).delete();
+        invalidateUser(userId);
     }
 
     /**
@@ -263,7 +502,28 @@ public class DepotUserRepository extends DepotRepository
     {
         Date expires = Calendars.now().addDays(expireDays).toSQLDate();
         // attempt to update an existing session record, returning true if we found and updated it
-        return updatePartial(SessionRecord.getKey(authcode), SessionRecord.EXPIRES, expires) == 1;
+        return updateSessionExpiry(authcode, expires);
+    }
+
+    /**
+     * Updates the expiry of the specified sessions in a single statement (per chunk of sessions).
+     * Sessions that no longer exist are ignored. This is used by {@link SessionRefresher} to write
+     * coalesced refreshes.
+     *
+     * @return the number of sessions updated.
+     */
+    public int updateSessionExpiries (Collection<String> authcodes, Date expires)
+    {
+        int updated = 0;
+        for (List<String> chunk : Iterables.partition(authcodes, MAX_SESSION_BATCH)) {
+            KeySet<SessionRecord> keys = KeySet.newSimpleKeySet(SessionRecord.class, chunk);
+            updated += updatePartial(
+                SessionRecord.class, keys, keys, SessionRecord.EXPIRES, expires);
+            for (String authcode : chunk) {
+                invalidateSession(authcode);
+            }
+        }
+        return updated;
     }
 
     /**
@@ -272,7 +532,12 @@ public class DepotUserRepository extends DepotRepository
     public void pruneSessions ()
     {
         Date now = new Date(System.currentTimeMillis());
-        deleteAll(SessionRecord.class, new Where(SessionRecord.EXPIRES.lessEq(now)));
+        ChunkedPruner pruner = _pruner;
+        if (pruner != null) {
+            pruner.prune(this, SessionRecord.class, SessionRecord.EXPIRES.lessEq(now));
+        } else {
+            deleteAll(SessionRecord.class, new Where(SessionRecord.EXPIRES.lessEq(now)));
+        }
     }
 
     /**
@@ -291,21 +556,86 @@ public class DepotUserRepository extends DepotRepository
 
     /**
      * Returns an array of usernames from the supplied collection that have the specified token set.
+     * This consults the token table, which is maintained only by this repository, so tokens
+     * granted or revoked via the legacy {@link com.threerings.user.OOOUserRepository} are not
+     * reflected until the table is next rebuilt (see {@link #rebuildUserTokens}).
      */
     public List<String> getTokenUsernames (Collection<String> usernames, byte token)
     {
-        // We're doing a manual token check after loading the users, however ideally having the
-        // depot support for a regexp comparison on a hex converted tokens field would be faster
-        List<String> retnames = Lists.newArrayList();
-        if (usernames.size() > 0) {
-            Where where = new Where(OOOUserRecord.USERNAME.in(usernames));
-            for (OOOUserRecord record : findAll(OOOUserRecord.class, where)) {
-                if (record.holdsToken(token)) {
-                    retnames.add(record.username);
-                }
+        if (usernames.isEmpty()) {
+            return Lists.newArrayList();
+        }
+        return from(OOOUserRecord.class)
+            .join(OOOUserRecord.USER_ID, UserTokenRecord.USER_ID)
+            .where(UserTokenRecord.TOKEN.eq(token), OOOUserRecord.USERNAME.in(usernames))
+            .select(OOOUserRecord.USERNAME);
+    }
+
+    /**
+     * Returns the ids of all users that hold the specified token, in ascending order. The ids are
+     * loaded a page at a time as the returned iterable is iterated over, so this may be used to
+     * process any number of users. Like {@link #getTokenUsernames}, this consults the token table,
+     * so tokens written via the legacy {@link com.threerings.user.OOOUserRepository} are not
+     * reflected until the table is next rebuilt.
+     */
+    public Iterable<Integer> loadUserIdsWithToken (final byte token)
+    {
+        return new Iterable<Integer>() {
+            public Iterator<Integer> iterator () {
+                return new AbstractIterator<Integer>() {
+                    @Override protected Integer computeNext () {
+                        if (!_page.hasNext() && _more) {
+                            List<Integer> userIds = from(UserTokenRecord.class).noCache()
+                                .where(UserTokenRecord.TOKEN.eq(token),
+                                       UserTokenRecord.USER_ID.greaterThan(_lastId))
+                                .ascending(UserTokenRecord.USER_ID).limit(TOKEN_PAGE_SIZE)
+                                .select(UserTokenRecord.USER_ID);
+                            _more = (userIds.size() == TOKEN_PAGE_SIZE);
+                            _page = userIds.iterator();
+                        }
+                        if (!_page.hasNext()) {
+                            return endOfData();
+                        }
+                        _lastId = _page.next();
+                        return _lastId;
+                    }
+                    protected Iterator<Integer> _page = Collections.emptyIterator();
+                    protected boolean _more = true;
+                    protected int _lastId = Integer.MIN_VALUE;
+                };
             }
+        };
+    }
+
+    /**
+     * Rebuilds the token table from the tokens stored in the user table, correcting any drift
+     * from tokens written via the legacy {@link com.threerings.user.OOOUserRepository}. Users are
+     * rebuilt a batch at a time, each batch in its own transaction.
+     */
+    public void rebuildUserTokens ()
+    {
+        final int[] afterUserId = { Integer.MIN_VALUE };
+        final boolean[] more = { true };
+        while (more[0]) {
+            Transaction.perform(_ctx, new Runnable() {
+                public void run () {
+                    List<Tuple2<Integer, byte[]>> users = from(OOOUserRecord.class).noCache()
+                        .where(OOOUserRecord.USER_ID.greaterThan(afterUserId[0]))
+                        .ascending(OOOUserRecord.USER_ID).limit(MAX_USER_BATCH)
+                        .select(OOOUserRecord.USER_ID, OOOUserRecord.TOKENS);
+                    if (users.isEmpty()) {
+                        more[0] = false;
+                        return;
+                    }
+                    Map<Integer, byte[]> tokens = Maps.newHashMap();
+                    for (Tuple2<Integer, byte[]> user : users) {
+                        tokens.put(user.a, user.b);
+                    }
+                    writeUserTokens(tokens);
+                    afterUserId[0] = users.get(users.size() - 1).a;
+                }
+            });
         }
-        return retnames;
     }
 
     /**
@@ -321,6 +651,14 @@ public class DepotUserRepository extends DepotRepository
                 idents.add(record.machIdent);
             }
         }
+        IdentRecorder recorder = _identRecorder;
+        if (recorder != null) {
+            for (String machIdent : recorder.getPendingIdents(userId)) {
+                if (!idents.contains(machIdent)) {
+                    idents.add(machIdent);
+                }
+            }
+        }
         String[] machIdents = idents.toArray(new String[idents.size()]);
         Arrays.sort(machIdents); // sort the idents in java to ensure correct collation
         return machIdents;
@@ -347,6 +685,7 @@ public class DepotUserRepository extends DepotRepository
         for (OOOUserRecord record : findAll(OOOUserRecord.class, join)) {
             users.add(new Tuple<Integer,String>(record.userId, record.username));
         }
+        addPendingUsers(users, Collections.singletonList(machIdent));
         return users;
     }
 
@@ -356,11 +695,26 @@ public class DepotUserRepository extends DepotRepository
      */
     public List<OOOUserCard> getUsersOfMachIdentCards (String machIdent)
     {
-        return from(OOOUserRecord.class)
+        List<OOOUserCard> cards = from(OOOUserRecord.class)
             .where(UserIdentRecord.MACH_IDENT, machIdent)
             .join(OOOUserRecord.USER_ID, UserIdentRecord.USER_ID)
             .select(BUILD_OOO_USER_CARD,
                 OOOUserRecord.USER_ID, OOOUserRecord.USERNAME, OOOUserRecord.FLAGS);
+        IdentRecorder recorder = _identRecorder;
+        if (recorder != null) {
+            cards = Lists.newArrayList(cards);
+            Set<Integer> userIds = Sets.newHashSet();
+            for (OOOUserCard card : cards) {
+                userIds.add(card.userid);
+            }
+            for (IdentRecorder.Ident ident :
+                     recorder.getPendingUsers(Collections.singletonList(machIdent))) {
+                if (userIds.add(ident.userId)) {
+                    cards.add(new OOOUserCard(ident.userId, ident.username, ident.flags));
+                }
+            }
+        }
+        return cards;
     }
 
     /**
@@ -375,22 +729,252 @@ public class DepotUserRepository extends DepotRepository
         for (OOOUserRecord record : findAll(OOOUserRecord.class, join)) {
             users.add(new Tuple<Integer,String>(record.userId, record.username));
         }
+        addPendingUsers(users, Arrays.asList(idents));
         return users;
     }
 
+    /**
+     * Passes the username and id of each user that has ever reported any of the specified machine
+     * identifiers to the supplied consumer, without loading the users' records. A user may be
+     * passed more than once if they have reported more than one of the identifiers.
+     */
+    public void getUsersOfMachIdents (final String[] idents, final ObjIntConsumer<String> consumer)
+    {
+        if (idents.length == 0) {
+            return;
+        }
+        // we only need to know whom we've passed along if there are queued idents to add
+        final IdentRecorder recorder = _identRecorder;
+        final UserBitmap seen = (recorder == null) ? null : new UserBitmap();
+        _ctx.invoke(new RowStreamer() {
+            @Override protected PreparedStatement createStatement (Connection conn)
+                throws SQLException {
+                StringBuilder query = new StringBuilder("select u.")
+                    .append(columnSQL(OOOUserRecord.USER_ID)).append(", u.")
+                    .append(columnSQL(OOOUserRecord.USERNAME)).append(" from ")
+                    .append(tableSQL(OOOUserRecord.class)).append(" u, ")
+                    .append(tableSQL(UserIdentRecord.class)).append(" i where u.")
+                    .append(columnSQL(OOOUserRecord.USER_ID)).append(" = i.")
+                    .append(columnSQL(UserIdentRecord.USER_ID)).append(" and i.")
+                    .append(columnSQL(UserIdentRecord.MACH_IDENT)).append(" in (");
+                PreparedStatement stmt = conn.prepareStatement(
+                    appendParams(query, idents.length).append(")").toString());
+                for (int ii = 0; ii < idents.length; ii++) {
+                    stmt.setString(ii + 1, idents[ii]);
+                }
+                return stmt;
+            }
+            @Override protected void handleRow (ResultSet rs) throws SQLException {
+                int userId = rs.getInt(1);
+                if (seen != null) {
+                    seen.add(userId);
+                }
+                consumer.accept(rs.getString(2), userId);
+            }
+        });
+
+        if (recorder != null) {
+            for (IdentRecorder.Ident ident : recorder.getPendingUsers(Arrays.asList(idents))) {
+                if (seen.add(ident.userId)) {
+                    consumer.accept(ident.username, ident.userId);
+                }
+            }
+        }
+    }
+
     /**
      * Add the {@code userId -> machIdent} mapping to the database.
      */
     public void addUserIdent (int userId, String machIdent)
     {
-        // don't add blank or null idents
-        if (!StringUtil.isBlank(machIdent)) {
-            try {
-                insert(new UserIdentRecord(userId, machIdent));
-            } catch (DuplicateKeyException dke) {
-                // ignore, since the cache may have lied about this record not being present
+        if (insertUserIdent(userId, machIdent)) {
+            OOOUserRecord record = load(OOOUserRecord.getKey(userId));
+            if (record != null && isCountedFree(record.username, record.flags)) {
+                adjustFreeAccountCount(machIdent, record.created, 1);
+            }
+        }
+    }
+
+    /**
+     * Add the {@code userId -> machIdent} mapping to the database for an already loaded user.
+     */
+    public void addUserIdent (OOOUser user, String machIdent)
+    {
+        // if we have a recorder, let it write the mapping later
+        IdentRecorder recorder = _identRecorder;
+        if (recorder != null && !StringUtil.isBlank(machIdent) &&
+                recorder.record(user, machIdent)) {
+            return;
+        }
+        if (insertUserIdent(user.userId, machIdent) &&
+                isCountedFree(user.username, user.flags)) {
+            adjustFreeAccountCount(machIdent, user.created, 1);
+        }
+    }
+
+    /**
+     * Adds a batch of {@code userId -> machIdent} mappings to the database. Mappings that are
+     * already present are skipped, so a batch may safely be written more than once, as are those
+     * of users who have since been deleted. The free account counts are adjusted according to the
+     * users' current names and flags, not those recorded when the mappings were queued.
+     */
+    public void addUserIdents (List<IdentRecorder.Ident> idents)
+    {
+        // load the users' current state; they may have bought coins or been deleted since their
+        // idents were queued
+        Set<Integer> userIds = Sets.newHashSet();
+        for (IdentRecorder.Ident ident : idents) {
+            userIds.add(ident.userId);
+        }
+        Map<Integer, OOOUserRecord> users = Maps.newHashMap();
+        for (OOOUserRecord record : from(OOOUserRecord.class).noCache()
+                 .where(OOOUserRecord.USER_ID.in(userIds)).select()) {
+            users.put(record.userId, record);
+        }
+
+        // weed out the mappings that we already have, and those of deleted users
+        Set<Tuple2<Integer, String>> have = Sets.newHashSet(
+            from(UserIdentRecord.class).noCache().where(UserIdentRecord.USER_ID.in(userIds))
+            .select(UserIdentRecord.USER_ID, UserIdentRecord.MACH_IDENT));
+        final List<IdentRecorder.Ident> added = Lists.newArrayList();
+        for (IdentRecorder.Ident ident : idents) {
+            OOOUserRecord user = users.get(ident.userId);
+            if (user != null && user.username.indexOf('=') < 0 &&
+                    !StringUtil.isBlank(ident.machIdent) &&
+                    have.add(Tuple2.create(ident.userId, ident.machIdent))) {
+                added.add(ident);
+            }
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+
+        // insert the rest with a single statement; if another server beat us to any of them,
+        // insert them one at a time instead
+        List<Key<UserIdentRecord>> keys = Lists.newArrayListWithCapacity(added.size());
+        for (IdentRecorder.Ident ident : added) {
+            keys.add(UserIdentRecord.getKey(ident.userId, ident.machIdent));
+        }
+        final String table = _ctx.getMarshaller(UserIdentRecord.class).getTableName();
+        final String userId = columnName(UserIdentRecord.USER_ID);
+        final String machIdent = columnName(UserIdentRecord.MACH_IDENT);
+        try {
+            _ctx.invoke(new Modifier(KeySet.newKeySet(UserIdentRecord.class, keys)) {
+                @Override protected int invoke (Connection conn, DatabaseLiaison liaison)
+                    throws SQLException {
+                    StringBuilder query = new StringBuilder("insert into ")
+                        .append(liaison.tableSQL(table)).append(" (")
+                        .append(liaison.columnSQL(userId)).append(", ")
+                        .append(liaison.columnSQL(machIdent)).append(") values ");
+                    for (int ii = 0, ll = added.size(); ii < ll; ii++) {
+                        query.append(ii == 0 ? "(?, ?)" : ", (?, ?)");
+                    }
+                    PreparedStatement stmt = conn.prepareStatement(query.toString());
+                    try {
+                        int idx = 1;
+                        for (IdentRecorder.Ident ident : added) {
+                            stmt.setInt(idx++, ident.userId);
+                            stmt.setString(idx++, ident.machIdent);
+                        }
+                        return stmt.executeUpdate();
+                    } finally {
+                        stmt.close();
+                    }
+                }
+            });
+        } catch (DuplicateKeyException dke) {
+            for (Iterator<IdentRecorder.Ident> iter = added.iterator(); iter.hasNext(); ) {
+                IdentRecorder.Ident ident = iter.next();
+                if (!insertUserIdent(ident.userId, ident.machIdent)) {
+                    iter.remove();
+                }
+            }
+        }
+
+        for (IdentRecorder.Ident ident : added) {
+            OOOUserRecord user = users.get(ident.userId);
+            if (isCountedFree(user.username, user.flags)) {
+                adjustFreeAccountCount(ident.machIdent, user.created, 1);
+            }
+        }
+    }
+
+    /**
+     * Passes the id, flags, Yohoho billing status and site of up to {@code count} users that have
+     * not been deleted and whose ids are greater than {@code afterId} to the supplied consumer, in
+     * ascending id order, without loading their records. Used to build a {@link
+     * UserBitmapIndex} a page at a time.
+     *
+     * @return the id of the last user visited, or {@code afterId} if there were none.
+     */
+    public int scanUserStatus (final int afterId, final int count,
+                               final UserStatusConsumer consumer)
+    {
+        final int[] lastId = { afterId };
+        _ctx.invoke(new RowStreamer() {
+            @Override protected PreparedStatement createStatement (Connection conn)
+                throws SQLException {
+                String query = "select " + columnSQL(OOOUserRecord.USER_ID) + ", " +
+                    columnSQL(OOOUserRecord.FLAGS) + ", " + columnSQL(OOOUserRecord.YOHOHO) +
+                    ", " + columnSQL(OOOUserRecord.SITE_ID) + " from " +
+                    tableSQL(OOOUserRecord.class) + " where " +
+                    columnSQL(OOOUserRecord.USER_ID) + " > ? and " +
+                    columnSQL(OOOUserRecord.USERNAME) + " not like '%=%' order by " +
+                    columnSQL(OOOUserRecord.USER_ID) + " limit " + count;
+                PreparedStatement stmt = conn.prepareStatement(query);
+                stmt.setInt(1, afterId);
+                return stmt;
+            }
+            @Override protected void handleRow (ResultSet rs) throws SQLException {
+                lastId[0] = rs.getInt(1);
+                consumer.accept(lastId[0], rs.getInt(2), rs.getByte(3), rs.getInt(4));
+            }
+        });
+        return lastId[0];
+    }
+
+    /**
+     * Rebuilds the free account counts from the user and ident tables, correcting any drift in
+     * the incrementally maintained counts (from flags or usernames changed via {@link
+     * #updateUser}, or users and idents written via the legacy {@link
+     * com.threerings.user.OOOUserRepository}, which doesn't maintain them) and discarding counts
+     * too old to matter. The counts are rebuilt a day at a time, each day in its own transaction,
+     * so that the tables involved are never locked for long. The users created on each day are
+     * found by walking down the user ids from the newest user, so this relies on ids being
+     * assigned in (roughly) creation order.
+     *
+     * @return the number of count records written.
+     */
+    public int rebuildFreeAccountCounts ()
+    {
+        Date since = Calendars.now().addDays(RECENT_ACCOUNT_CUTOFF).toSQLDate();
+
+        // discard the counts that are too old to matter
+        ChunkedPruner pruner = _pruner;
+        if (pruner != null) {
+            pruner.prune(this, FreeAccountCountRecord.class,
+                         FreeAccountCountRecord.CREATED.lessEq(since));
+        } else {
+            deleteAll(FreeAccountCountRecord.class,
+                      new Where(FreeAccountCountRecord.CREATED.lessEq(since)));
+        }
+
+        // find the range of ids of the users created on each recent day
+        Map<LocalDate, int[]> ranges = Maps.newHashMap();
+        for (int maxId = getMaxUserId(); maxId > 0; maxId -= FREE_COUNT_ID_CHUNK) {
+            if (!loadCreatedRanges(maxId - FREE_COUNT_ID_CHUNK, maxId, since, ranges)) {
+                break;
             }
         }
+
+        // and rebuild the counts for each of those days
+        int written = 0;
+        LocalDate today = LocalDate.now();
+        for (LocalDate day = since.toLocalDate().plusDays(1); !day.isAfter(today);
+             day = day.plusDays(1)) {
+            written += rebuildFreeAccountCounts(Date.valueOf(day), ranges.get(day));
+        }
+        return written;
     }
 
     /**
@@ -398,8 +982,13 @@ public class DepotUserRepository extends DepotRepository
      */
     public int getMachineIdentCount (String machIdent)
     {
-        return load(CountRecord.class, new FromOverride(UserIdentRecord.class),
+        int count = load(CountRecord.class, new FromOverride(UserIdentRecord.class),
                 new Where(UserIdentRecord.MACH_IDENT, machIdent)).count;
+        IdentRecorder recorder = _identRecorder;
+        if (recorder != null) {
+            count += recorder.getPendingUsers(Collections.singletonList(machIdent)).size();
+        }
+        return count;
     }
 
     /**
@@ -411,6 +1000,10 @@ public class DepotUserRepository extends DepotRepository
         if (StringUtil.isBlank(machIdent)) {
             return false;
         }
+        IdentIndex index = _identIndex;
+        if (index != null && !index.mayBeTainted(machIdent)) {
+            return false;
+        }
         return load(TaintedIdentRecord.getKey(machIdent)) != null;
     }
 
@@ -422,12 +1015,36 @@ public class DepotUserRepository extends DepotRepository
         if (idents == null || idents.length == 0) {
             return Collections.emptyList();
         }
+        IdentIndex index = _identIndex;
+        if (index != null) {
+            List<String> maybe = Lists.newArrayList();
+            for (String ident : idents) {
+                if (ident != null && index.mayBeTainted(ident)) {
+                    maybe.add(ident);
+                }
+            }
+            if (maybe.isEmpty()) {
+                return Collections.emptyList();
+            }
+            idents = maybe.toArray(new String[maybe.size()]);
+        }
 
         return from(TaintedIdentRecord.class)
             .where(TaintedIdentRecord.MACH_IDENT.in(idents))
             .select(TaintedIdentRecord.MACH_IDENT);
     }
 
+    /**
+     * Loads up to {@code count} tainted machine idents that sort after {@code after}, in order.
+     */
+    public List<String> loadTaintedIdentsAfter (String after, int count)
+    {
+        return from(TaintedIdentRecord.class).noCache()
+            .where(TaintedIdentRecord.MACH_IDENT.greaterThan(after))
+            .ascending(TaintedIdentRecord.MACH_IDENT).limit(count)
+            .select(TaintedIdentRecord.MACH_IDENT);
+    }
+
     /**
      * Store to the database that the passed in machIdent has been tainted by a banned player.
      */
@@ -435,6 +1052,11 @@ public class DepotUserRepository extends DepotRepository
     {
         // don't taint blank or null idents
         if (!StringUtil.isBlank(machIdent)) {
+            // note it first so that the index never misses an ident that is in the database
+            IdentIndex index = _identIndex;
+            if (index != null) {
+                index.noteTainted(machIdent);
+            }
             try {
                 insert(new TaintedIdentRecord(machIdent));
             } catch (DuplicateKeyException dke) {
@@ -460,6 +1082,10 @@ public class DepotUserRepository extends DepotRepository
         if (StringUtil.isBlank(machIdent)) {
             return false;
         }
+        IdentIndex index = _identIndex;
+        if (index != null && !index.mayBeBanned(machIdent, siteId)) {
+            return false;
+        }
         return load(BannedIdentRecord.getKey(machIdent, siteId)) != null;
     }
 
@@ -471,16 +1097,42 @@ public class DepotUserRepository extends DepotRepository
         if (idents == null || idents.length == 0) {
             return Collections.emptyList();
         }
+        IdentIndex index = _identIndex;
+        if (index != null) {
+            List<String> maybe = Lists.newArrayList();
+            for (String ident : idents) {
+                if (ident != null && index.mayBeBanned(ident, siteId)) {
+                    maybe.add(ident);
+                }
+            }
+            if (maybe.isEmpty()) {
+                return Collections.emptyList();
+            }
+            idents = maybe.toArray(new String[maybe.size()]);
+        }
         return from(BannedIdentRecord.class)
             .where(BannedIdentRecord.SITE_ID.eq(siteId), BannedIdentRecord.MACH_IDENT.in(idents))
             .select(BannedIdentRecord.MACH_IDENT);
     }
 
+    /**
+     * Loads all of the banned machine idents and the sites on which they are banned.
+     */
+    public List<Tuple2<String, Integer>> loadBannedIdents ()
+    {
+        return from(BannedIdentRecord.class).noCache()
+            .select(BannedIdentRecord.MACH_IDENT, BannedIdentRecord.SITE_ID);
+    }
+
     /**
      * Store to the database that the passed in machIdent has been banned on the site.
      */
     public void addBannedIdent (String machIdent, int siteId)
     {
+        IdentIndex index = _identIndex;
+        if (index != null) {
+            index.noteBanned(machIdent, siteId);
+        }
         insert(new BannedIdentRecord(machIdent, siteId));
     }
 
@@ -572,6 +1224,10 @@ public class DepotUserRepository extends DepotRepository
         hrec.siteId = siteId;
         insert(hrec);
 
+        UserBitmapIndex index = _bitmapIndex;
+        if (index != null) {
+            index.noteUser(user.userId, user.flags, user.yohoho, user.siteId);
+        }
         return user.userId;
     }
 
@@ -591,6 +1247,8 @@ public class DepotUserRepository extends DepotRepository
                                       OOOUserRecord.USERNAME, username);
         } catch (DuplicateKeyException pe) {
             throw new UserExistsException("error.user_exists");
+        } finally {
+            invalidateUser(userId);
         }
     }
 
@@ -600,6 +1258,7 @@ public class DepotUserRepository extends DepotRepository
     public void changeEmail (int userId, String email)
     {
         updatePartial(OOOUserRecord.getKey(userId), OOOUserRecord.EMAIL, email);
+        invalidateUser(userId);
     }
 
     /**
@@ -609,6 +1268,8 @@ public class DepotUserRepository extends DepotRepository
     {
         updatePartial(OOOUserRecord.getKey(userId), OOOUserRecord.EMAIL, email,
                       OOOUserRecord.FLAGS, OOOUserRecord.FLAGS.bitAnd(~OOOUser.VALIDATED_FLAG));
+        invalidateUser(userId);
+        noteFlags(userId, 0, OOOUser.VALIDATED_FLAG);
     }
 
     /**
@@ -617,6 +1278,38 @@ public class DepotUserRepository extends DepotRepository
     public void changePassword (int userId, String password)
     {
         updatePartial(OOOUserRecord.getKey(userId), OOOUserRecord.PASSWORD, password);
+        invalidateUser(userId);
+    }
+
+    /**
+     * Loads the ids and password hashes of up to {@code count} users with ids greater than {@code
+     * afterUserId}, in ascending order of user id. Used to walk the user table in chunks.
+     */
+    public List<Tuple2<Integer, String>> loadPasswordsAfter (int afterUserId, int count)
+    {
+        return from(OOOUserRecord.class).noCache()
+            .where(OOOUserRecord.USER_ID.greaterThan(afterUserId))
+            .ascending(OOOUserRecord.USER_ID).limit(count)
+            .select(OOOUserRecord.USER_ID, OOOUserRecord.PASSWORD);
+    }
+
+    /**
+     * Changes the specified user's password hash, but only if their stored hash is still {@code
+     * oldPassword}. Used to upgrade hashes in the background without clobbering a password change
+     * made in the meantime.
+     *
+     * @return true if the password was changed, false if the stored hash had changed.
+     */
+    public boolean changePasswordIfUnchanged (int userId, String oldPassword, String password)
+    {
+        int mods = updatePartial(
+            OOOUserRecord.class, new Where(OOOUserRecord.USER_ID.eq(userId),
+                                           OOOUserRecord.PASSWORD.eq(oldPassword)),
+            OOOUserRecord.getKey(userId), OOOUserRecord.PASSWORD, password);
+        if (mods > 0) {
+            invalidateUser(userId);
+        }
+        return mods > 0;
     }
 
     /**
@@ -629,13 +1322,30 @@ public class DepotUserRepository extends DepotRepository
      */
     public boolean updateUser (OOOUser user)
     {
-        OOOUserRecord.DepotOOOUser duser = (OOOUserRecord.DepotOOOUser)user;
+        final OOOUserRecord.DepotOOOUser duser = (OOOUserRecord.DepotOOOUser)user;
         if (duser.mods == null) {
             return false;
         }
-        update(OOOUserRecord.fromUser(user),
-               duser.mods.toArray(new ColumnExp<?>[duser.mods.size()]));
+        final ColumnExp<?>[] mods = duser.mods.toArray(new ColumnExp<?>[duser.mods.size()]);
+        if (duser.mods.contains(OOOUserRecord.TOKENS)) {
+            // keep the token table in sync with the user's tokens
+            Transaction.perform(_ctx, new Runnable() {
+                public void run () {
+                    update(OOOUserRecord.fromUser(duser), mods);
+                    writeUserTokens(Collections.singletonMap(duser.userId, duser.tokens));
+                }
+            });
+        } else {
+            update(OOOUserRecord.fromUser(user), mods);
+        }
+        UserBitmapIndex index = _bitmapIndex;
+        if (index != null && (duser.mods.contains(OOOUserRecord.FLAGS) ||
+                              duser.mods.contains(OOOUserRecord.YOHOHO) ||
+                              duser.mods.contains(OOOUserRecord.SITE_ID))) {
+            index.noteUser(user.userId, user.flags, user.yohoho, user.siteId);
+        }
         duser.mods = null;
+        invalidateUser(user.userId);
         return true;
     }
 
@@ -644,8 +1354,27 @@ public class DepotUserRepository extends DepotRepository
      */
     public void addFlags (int userId, int addMask)
     {
+        // if this makes a free account a paying one, it no longer counts toward its machines'
+        // free accounts; we only adjust the counts if it was actually free before the update
+        if ((addMask & OOOUser.HAS_BOUGHT_COINS_FLAG) != 0) {
+            int mods = updatePartial(
+                OOOUserRecord.class, new Where(
+                    OOOUserRecord.USER_ID.eq(userId),
+                    OOOUserRecord.FLAGS.bitAnd(OOOUser.HAS_BOUGHT_COINS_FLAG).eq(0)),
+                OOOUserRecord.getKey(userId),
+                OOOUserRecord.FLAGS, OOOUserRecord.FLAGS.bitOr(addMask));
+            invalidateUser(userId);
+            if (mods > 0) {
+                noteFlags(userId, addMask, 0);
+                adjustFreeAccounts(userId, -1);
+                return;
+            }
+        }
+
         updatePartial(OOOUserRecord.getKey(userId),
                       OOOUserRecord.FLAGS, OOOUserRecord.FLAGS.bitOr(addMask));
+        invalidateUser(userId);
+        noteFlags(userId, addMask, 0);
     }
 
     /**
@@ -666,8 +1395,26 @@ public class DepotUserRepository extends DepotRepository
      */
     public void clearFlags (int userId, int clearMask)
     {
+        // if this makes a paying account a free one, it counts toward its machines' free accounts
+        if ((clearMask & OOOUser.HAS_BOUGHT_COINS_FLAG) != 0) {
+            int mods = updatePartial(
+                OOOUserRecord.class, new Where(
+                    OOOUserRecord.USER_ID.eq(userId),
+                    OOOUserRecord.FLAGS.bitAnd(OOOUser.HAS_BOUGHT_COINS_FLAG).notEq(0)),
+                OOOUserRecord.getKey(userId),
+                OOOUserRecord.FLAGS, OOOUserRecord.FLAGS.bitAnd(~clearMask));
+            invalidateUser(userId);
+            if (mods > 0) {
+                noteFlags(userId, 0, clearMask);
+                adjustFreeAccounts(userId, 1);
+                return;
+            }
+        }
+
         updatePartial(OOOUserRecord.getKey(userId),
                       OOOUserRecord.FLAGS, OOOUserRecord.FLAGS.bitAnd(~clearMask));
+        invalidateUser(userId);
+        noteFlags(userId, 0, clearMask);
     }
 
     /**
@@ -710,6 +1457,25 @@ public class DepotUserRepository extends DepotRepository
                 // try again
                 continue;
             }
+            invalidateUser(record.userId);
+
+            UserBitmapIndex index = _bitmapIndex;
+            if (index != null) {
+                index.noteDeleted(record.userId);
+            }
+
+            // don't write out idents still queued for a deleted account; they were never counted
+            IdentRecorder recorder = _identRecorder;
+            if (recorder != null) {
+                recorder.forget(record.userId);
+            }
+
+            // deleted accounts don't count toward their machines' free accounts
+            if (isCountedFree(oldName, user.flags)) {
+                for (String machIdent : loadStoredMachineIdents(record.userId)) {
+                    adjustFreeAccountCount(machIdent, user.created, -1);
+                }
+            }
             return;
         }
     }
@@ -717,54 +1483,113 @@ public class DepotUserRepository extends DepotRepository
     /**
      * Mark this user's account as banned, update the tainted machine idents table as needed.
      *
-     * @return true if the user exists and was banned, false if not.
+     * @return true if the user exists and was banned, false if not (or if they were already
+     * banned).
      */
     public boolean ban (int site, String username)
     {
-        OOOUser user = loadUser(username, false);
-        if (user == null) {
-            return false;
-        }
-
-        if (!user.setBanned(site, true)) {
-            return false;
-        }
-        updateUser(user);
-        String[] idents = loadMachineIdents(user.userId);
-        Collection<String> tainted = filterTaintedIdents(idents);
-        for (String id : idents) {
-            if (!tainted.contains(id)) {
-                addTaintedIdent(id);
-            }
-        }
-        return true;
+        return banUsers(site, Collections.singletonList(username)).get(username);
     }
 
     /**
      * Remove the ban from the users account, optionally untainting his machine idents.
      *
-     * @return true if the user exists and was unbanned, false if not.
+     * @return true if the user exists and was unbanned, false if not (or if they were not
+     * banned).
      */
     public boolean unban (int site, String username, boolean untaint)
     {
-        // Not currently tainting every system this user has ever touched or will touch in the
-        // future
-        OOOUser user = loadUser(username, untaint);
-        if (user == null) {
-            return false;
-        }
+        return unbanUsers(site, Collections.singletonList(username), untaint).get(username);
+    }
 
-        if (!user.setBanned(site, false)) {
-            return false;
+    /**
+     * Bans all of the specified users on the specified site and taints all of their machine
+     * idents. The users' tokens are updated with a single statement (per chunk of users) and the
+     * idents are tainted with a single insert.
+     *
+     * @return a mapping from each supplied username to true if the user exists and was banned,
+     * false if not (or if they were already banned).
+     */
+    public Map<String, Boolean> banUsers (int site, Collection<String> usernames)
+    {
+        return toNameResults(
+            usernames, setBanned(site, loadUsersByName(usernames).values(), true, false));
+    }
+
+    /**
+     * Bans all of the specified users on the specified site and taints all of their machine
+     * idents. See {@link #banUsers}.
+     *
+     * @return a mapping from each supplied user id to true if the user exists and was banned,
+     * false if not (or if they were already banned).
+     */
+    public Map<Integer, Boolean> banUserIds (int site, Collection<Integer> userIds)
+    {
+        return toIdResults(userIds, setBanned(site, loadUsersById(userIds), true, false));
+    }
+
+    /**
+     * Removes the bans of all of the specified users on the specified site, optionally
+     * untainting all of their machine idents.
+     *
+     * @return a mapping from each supplied username to true if the user exists and was unbanned,
+     * false if not (or if they were not banned).
+     */
+    public Map<String, Boolean> unbanUsers (int site, Collection<String> usernames,
+                                            boolean untaint)
+    {
+        return toNameResults(
+            usernames, setBanned(site, loadUsersByName(usernames).values(), false, untaint));
+    }
+
+    /**
+     * Removes the bans of all of the specified users on the specified site, optionally
+     * untainting all of their machine idents.
+     *
+     * @return a mapping from each supplied user id to true if the user exists and was unbanned,
+     * false if not (or if they were not banned).
+     */
+    public Map<Integer, Boolean> unbanUserIds (int site, Collection<Integer> userIds,
+                                               boolean untaint)
+    {
+        return toIdResults(userIds, setBanned(site, loadUsersById(userIds), false, untaint));
+    }
+
+    /**
+     * Taints all of the supplied machine idents that are not already tainted, with a single
+     * insert per chunk of idents.
+     */
+    public void addTaintedIdents (Collection<String> machIdents)
+    {
+        Set<String> idents = Sets.newTreeSet();
+        for (String machIdent : machIdents) {
+            // don't taint blank or null idents
+            if (!StringUtil.isBlank(machIdent)) {
+                idents.add(machIdent);
+            }
+        }
+        for (List<String> chunk : Iterables.partition(idents, MAX_IDENT_BATCH)) {
+            List<String> fresh = Lists.newArrayList(chunk);
+            fresh.removeAll(filterTaintedIdents(chunk.toArray(new String[chunk.size()])));
+            if (!fresh.isEmpty()) {
+                insertTaintedIdents(fresh);
+            }
         }
-        updateUser(user);
+    }
 
-        if (untaint) {
-            for (String machIdent : user.machIdents) {
-                removeTaintedIdent(machIdent);
+    /**
+     * Removes all of the supplied machine idents from the tainted table.
+     */
+    public void removeTaintedIdents (Collection<String> machIdents)
+    {
+        for (List<String> chunk : Iterables.partition(machIdents, MAX_IDENT_BATCH)) {
+            List<Key<TaintedIdentRecord>> keys = Lists.newArrayListWithCapacity(chunk.size());
+            for (String machIdent : chunk) {
+                keys.add(TaintedIdentRecord.getKey(machIdent));
             }
+            deleteAll(TaintedIdentRecord.class, new Where(TaintedIdentRecord.MACH_IDENT.in(chunk)),
+                      KeySet.newKeySet(TaintedIdentRecord.class, keys));
         }
-        return true;
     }
 
     /**
@@ -783,17 +1608,10 @@ public class DepotUserRepository extends DepotRepository
             return Access.ACCESS_GRANTED;
         }
 
-        // if we have never seen them before...
-        if (user.machIdents == null) {
-            // add their ident to the userobject and db
-            user.machIdents = new String[] { machIdent };
-            addUserIdent(user.userId, machIdent);
-
-        } else if (Arrays.binarySearch(user.machIdents, machIdent) < 0) {
-            // add the machIdent to the users list of associated idents
-            user.machIdents = ArrayUtil.append(user.machIdents, machIdent);
-            // and slap it in the db
-            addUserIdent(user.userId, machIdent);
+        // if we have never seen this ident for them before, add it to the user object (keeping
+        // its idents sorted) and slap it in the db
+        if (user.addMachIdent(machIdent)) {
+            addUserIdent(user, machIdent);
         }
 
         // if this is a banned user, mark that ident
@@ -876,7 +1694,16 @@ public class DepotUserRepository extends DepotRepository
         if (record == null) {
             record = new AffiliateTagRecord();
             record.tag = tag;
-            insert(record);
+            try {
+                insert(record);
+            } catch (DuplicateKeyException dke) {
+                // another server registered this tag between our load and insert
+                record = from(AffiliateTagRecord.class).noCache()
+                    .where(AffiliateTagRecord.TAG, tag).load();
+                if (record == null) {
+                    throw dke;
+                }
+            }
         }
         return record.tagId;
     }
@@ -981,8 +1808,15 @@ public class DepotUserRepository extends DepotRepository
      */
     public void purgeValidationRecords ()
     {
-        deleteAll(ValidateDepotRecord.class, new Where(ValidateDepotRecord.INSERTED.lessThan(
-                        Calendars.now().zeroTime().addMonths(-1).toSQLDate())));
+        Date cutoff = Calendars.now().zeroTime().addMonths(-1).toSQLDate();
+        ChunkedPruner pruner = _pruner;
+        if (pruner != null) {
+            pruner.prune(this, ValidateDepotRecord.class,
+                         ValidateDepotRecord.INSERTED.lessThan(cutoff));
+        } else {
+            deleteAll(ValidateDepotRecord.class,
+                      new Where(ValidateDepotRecord.INSERTED.lessThan(cutoff)));
+        }
     }
 
     /**
@@ -1020,20 +1854,58 @@ public class DepotUserRepository extends DepotRepository
      * Returns a new Set that is a subset of the names in the provided collection, the new Set
      * containing only usernames that have purchased coins. The original collection is not
      * modified.
+     *
+     * <p> The names are looked up in chunks, sized according to the number and length of the
+     * names, which are run in parallel if a query executor is configured (see {@link
+     * #setQueryExecutor}). Very large collections are instead loaded into a temporary table and
+     * joined against.
      */
     public Set<String> filterCoinBuyers (final Collection<String> usernames)
     {
+        // weed out duplicates, which would only make our queries larger
+        Set<String> names = Sets.newHashSet(usernames);
+        if (names.size() > FILTER_COIN_TABLE_SIZE) {
+            return filterCoinBuyersViaTable(names);
+        }
+
+        List<List<String>> chunks = chunkNames(names);
         Set<String> filtered = Sets.newHashSet();
-        List<OOOUserRecord> records = findAll(OOOUserRecord.class,
-                new FromOverride(OOOUserRecord.class, OOOBillAuxDataRecord.class),
-                new Where(Ops.and(
-                        OOOUserRecord.USERNAME.in(usernames),
-                        OOOBillAuxDataRecord.USER_ID.eq(OOOUserRecord.USER_ID),
-                        Ops.not(OOOBillAuxDataRecord.FIRST_COIN_BUY.isNull()))));
-        for (OOOUserRecord record : records) {
-            filtered.add(record.username);
+        ExecutorService exec = _queryExecutor;
+        if (exec == null || chunks.size() < 2) {
+            for (List<String> chunk : chunks) {
+                filtered.addAll(loadCoinBuyers(chunk));
+            }
+            return filtered;
+        }
+
+        List<Future<List<String>>> results = Lists.newArrayList();
+        try {
+            for (final List<String> chunk : chunks) {
+                results.add(exec.submit(new Callable<List<String>>() {
+                    public List<String> call () {
+                        return loadCoinBuyers(chunk);
+                    }
+                }));
+            }
+            for (Future<List<String>> result : results) {
+                filtered.addAll(result.get());
+            }
+            return filtered;
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while filtering coin buyers", ie);
+
+        } catch (ExecutionException ee) {
+            Throwables.throwIfUnchecked(ee.getCause());
+            throw new DatabaseException(ee.getCause());
+
+        } finally {
+            // if we failed, don't leave the remaining chunks tying up connections
+            for (Future<List<String>> result : results) {
+                result.cancel(true);
+            }
         }
-        return filtered;
     }
 
     /**
@@ -1055,6 +1927,57 @@ public class DepotUserRepository extends DepotRepository
         return filtered;
     }
 
+    /**
+     * Returns the subset of the supplied userIds that purchased coins for the first time in the
+     * interval provided. The supplied array is not modified.
+     */
+    public ArrayIntSet filterNewCoinBuyers (int[] userIds, Date start, Date end)
+    {
+        final ArrayIntSet filtered = new ArrayIntSet();
+        filterNewCoinBuyers(userIds, start, end, new IntConsumer() {
+            public void accept (int userId) {
+                filtered.add(userId);
+            }
+        });
+        return filtered;
+    }
+
+    /**
+     * Passes each of the supplied userIds that purchased coins for the first time in the interval
+     * provided to the supplied consumer, in ascending order, without loading records or boxing
+     * ids. The supplied array is not modified.
+     */
+    public void filterNewCoinBuyers (int[] userIds, final Date start, final Date end,
+                                     final IntConsumer consumer)
+    {
+        // query the ids in ascending chunks so that they are reported in ascending order
+        final int[] sorted = userIds.clone();
+        Arrays.sort(sorted);
+        for (int ii = 0; ii < sorted.length; ii += MAX_USER_BATCH) {
+            final int offset = ii, length = Math.min(MAX_USER_BATCH, sorted.length - ii);
+            _ctx.invoke(new RowStreamer() {
+                @Override protected PreparedStatement createStatement (Connection conn)
+                    throws SQLException {
+                    StringBuilder query = new StringBuilder("select ")
+                        .append(columnSQL(OOOBillAuxDataRecord.USER_ID)).append(" from ")
+                        .append(tableSQL(OOOBillAuxDataRecord.class)).append(" where ")
+                        .append(columnSQL(OOOBillAuxDataRecord.USER_ID)).append(" in (");
+                    appendInts(query, sorted, offset, length).append(") and ")
+                        .append(columnSQL(OOOBillAuxDataRecord.FIRST_COIN_BUY)).append(" >= ? and ")
+                        .append(columnSQL(OOOBillAuxDataRecord.FIRST_COIN_BUY)).append(" <= ? ")
+                        .append("order by ").append(columnSQL(OOOBillAuxDataRecord.USER_ID));
+                    PreparedStatement stmt = conn.prepareStatement(query.toString());
+                    stmt.setDate(1, start);
+                    stmt.setDate(2, end);
+                    return stmt;
+                }
+                @Override protected void handleRow (ResultSet rs) throws SQLException {
+                    consumer.accept(rs.getInt(1));
+                }
+            });
+        }
+    }
+
     /**
      * Loads up the aux data record for the specified user. Returns null if none exists for that id.
      */
@@ -1228,21 +2151,289 @@ public class DepotUserRepository extends DepotRepository
      * Returns the number of free accounts that have been played at least
      * once from this machine ident and were created vaguely recently.
      * Returns the number of free accounts that have been played at least once from this machine
-     * ident and were created vaguely recently.
+     * ident and were created vaguely recently. The counts are maintained only by this
+     * repository, so they are accurate only if users and idents are never written via the legacy
+     * {@link com.threerings.user.OOOUserRepository}, or if they are periodically rebuilt (see
+     * {@link #rebuildFreeAccountCounts}).
      *
      * @param daysInThePast is a negative number representing days to go back.
      */
     protected int playedRecentFreeAccounts (String machIdent, int daysInThePast)
     {
         Date since = Calendars.now().addDays(daysInThePast).toSQLDate();
-        return load(CountRecord.class, new FromOverride(OOOUserRecord.class, UserIdentRecord.class),
-            new Where(Ops.and(
-                OOOUserRecord.USER_ID.eq(UserIdentRecord.USER_ID),
-                Ops.not(Ops.like(OOOUserRecord.USERNAME, "%=%")),
-                UserIdentRecord.MACH_IDENT.eq(machIdent),
-                OOOUserRecord.FLAGS.bitAnd(OOOUser.HAS_BOUGHT_COINS_FLAG).eq(0),
-                OOOUserRecord.CREATED.greaterThan(since))))
-            .count;
+        Number count = from(FreeAccountCountRecord.class).noCache()
+            .where(FreeAccountCountRecord.MACH_IDENT.eq(machIdent),
+                   FreeAccountCountRecord.CREATED.greaterThan(since))
+            .load(Funcs.sum(FreeAccountCountRecord.ACCOUNTS));
+        int accounts = (count == null) ? 0 : count.intValue();
+
+        // include the accounts whose mappings to this ident have yet to be written
+        IdentRecorder recorder = _identRecorder;
+        if (recorder != null) {
+            for (IdentRecorder.Ident ident :
+                     recorder.getPendingUsers(Collections.singletonList(machIdent))) {
+                if (isCountedFree(ident.username, ident.flags) && ident.created.after(since)) {
+                    accounts++;
+                }
+            }
+        }
+        return accounts;
+    }
+
+    /**
+     * Adds the users with queued mappings to any of the supplied idents to the supplied list of
+     * users, unless they are already present.
+     */
+    protected void addPendingUsers (List<Tuple<Integer, String>> users, List<String> machIdents)
+    {
+        IdentRecorder recorder = _identRecorder;
+        if (recorder == null) {
+            return;
+        }
+        Set<Integer> userIds = Sets.newHashSet();
+        for (Tuple<Integer, String> user : users) {
+            userIds.add(user.left);
+        }
+        for (IdentRecorder.Ident ident : recorder.getPendingUsers(machIdents)) {
+            if (userIds.add(ident.userId)) {
+                users.add(new Tuple<Integer,String>(ident.userId, ident.username));
+            }
+        }
+    }
+
+    /**
+     * Adds the supplied ident to the user's idents, unless it is blank.
+     *
+     * @return true if the ident was added, false if it was blank or already present.
+     */
+    protected boolean insertUserIdent (int userId, String machIdent)
+    {
+        // don't add blank or null idents
+        if (StringUtil.isBlank(machIdent)) {
+            return false;
+        }
+        try {
+            insert(new UserIdentRecord(userId, machIdent));
+            return true;
+        } catch (DuplicateKeyException dke) {
+            // ignore, since the cache may have lied about this record not being present
+            return false;
+        }
+    }
+
+    /**
+     * Adjusts the free account counts of all of the specified user's idents, if the user is not
+     * deleted. Used when the user's coin buying status changes. Only idents already written to
+     * the database are adjusted: those still queued by our ident recorder have not been counted,
+     * and are counted according to the user's status when they are written.
+     */
+    protected void adjustFreeAccounts (int userId, int delta)
+    {
+        OOOUserRecord record = load(OOOUserRecord.getKey(userId));
+        if (record != null && record.username.indexOf('=') < 0) {
+            for (String machIdent : loadStoredMachineIdents(userId)) {
+                adjustFreeAccountCount(machIdent, record.created, delta);
+            }
+        }
+    }
+
+    /**
+     * Widens the supplied ranges of the ids of the users created on each day after {@code since}
+     * to include the users with ids greater than {@code minId} and no greater than {@code maxId}.
+     *
+     * @return false if there are such users but none of them were created after {@code since}.
+     */
+    protected boolean loadCreatedRanges (final int minId, final int maxId, final Date since,
+                                         final Map<LocalDate, int[]> ranges)
+    {
+        final boolean[] recent = { false };
+        int days = _ctx.invoke(new RowStreamer() {
+            @Override protected PreparedStatement createStatement (Connection conn)
+                throws SQLException {
+                String query = "select " + columnSQL(OOOUserRecord.CREATED) + ", min(" +
+                    columnSQL(OOOUserRecord.USER_ID) + "), max(" +
+                    columnSQL(OOOUserRecord.USER_ID) + ") from " +
+                    tableSQL(OOOUserRecord.class) + " where " +
+                    columnSQL(OOOUserRecord.USER_ID) + " > ? and " +
+                    columnSQL(OOOUserRecord.USER_ID) + " <= ? group by " +
+                    columnSQL(OOOUserRecord.CREATED);
+                PreparedStatement stmt = conn.prepareStatement(query);
+                stmt.setInt(1, minId);
+                stmt.setInt(2, maxId);
+                return stmt;
+            }
+            @Override protected void handleRow (ResultSet rs) throws SQLException {
+                Date created = rs.getDate(1);
+                if (created == null || !created.after(since)) {
+                    return;
+                }
+                recent[0] = true;
+                LocalDate day = created.toLocalDate();
+                int[] range = ranges.get(day);
+                if (range == null) {
+                    ranges.put(day, new int[] { rs.getInt(2), rs.getInt(3) });
+                } else {
+                    range[0] = Math.min(range[0], rs.getInt(2));
+                    range[1] = Math.max(range[1], rs.getInt(3));
+                }
+            }
+        });
+        return days == 0 || recent[0];
+    }
+
+    /**
+     * Replaces the free account counts for the specified day with counts of the users created on
+     * that day, whose ids lie within the supplied range (or who don't exist, if it is null), in
+     * a single transaction.
+     *
+     * @return the number of count records written.
+     */
+    protected int rebuildFreeAccountCounts (final Date day, final int[] ids)
+    {
+        final int[] written = new int[1];
+        Transaction.perform(_ctx, new Runnable() {
+            public void run () {
+                deleteAll(FreeAccountCountRecord.class,
+                          new Where(FreeAccountCountRecord.CREATED.eq(day)));
+                if (ids == null) {
+                    return;
+                }
+                written[0] = _ctx.invoke(new Modifier() {
+                    @Override protected int invoke (Connection conn, DatabaseLiaison liaison)
+                        throws SQLException {
+                        String mach = liaison.columnSQL(columnName(UserIdentRecord.MACH_IDENT));
+                        String created = liaison.columnSQL(columnName(OOOUserRecord.CREATED));
+                        String userId = liaison.columnSQL(columnName(OOOUserRecord.USER_ID));
+                        String query = "insert into " + liaison.tableSQL(
+                            _ctx.getMarshaller(FreeAccountCountRecord.class).getTableName()) +
+                            " (" + liaison.columnSQL(
+                                columnName(FreeAccountCountRecord.MACH_IDENT)) + ", " +
+                            liaison.columnSQL(columnName(FreeAccountCountRecord.CREATED)) + ", " +
+                            liaison.columnSQL(columnName(FreeAccountCountRecord.ACCOUNTS)) +
+                            ") select i." + mach + ", u." + created + ", count(*) from " +
+                            liaison.tableSQL(
+                                _ctx.getMarshaller(UserIdentRecord.class).getTableName()) +
+                            " i, " + liaison.tableSQL(
+                                _ctx.getMarshaller(OOOUserRecord.class).getTableName()) +
+                            " u where u." + userId + " = i." +
+                            liaison.columnSQL(columnName(UserIdentRecord.USER_ID)) +
+                            " and u." + userId + " >= ? and u." + userId + " <= ? and u." +
+                            created + " = ? and u." +
+                            liaison.columnSQL(columnName(OOOUserRecord.USERNAME)) +
+                            " not like '%=%' and (u." +
+                            liaison.columnSQL(columnName(OOOUserRecord.FLAGS)) +
+                            " & ?) = 0 group by i." + mach + ", u." + created;
+                        PreparedStatement stmt = conn.prepareStatement(query);
+                        try {
+                            stmt.setInt(1, ids[0]);
+                            stmt.setInt(2, ids[1]);
+                            stmt.setDate(3, day);
+                            stmt.setInt(4, OOOUser.HAS_BOUGHT_COINS_FLAG);
+                            return stmt.executeUpdate();
+                        } finally {
+                            stmt.close();
+                        }
+                    }
+                });
+            }
+        });
+        return written[0];
+    }
+
+    /**
+     * Adjusts the count of free accounts created on the specified day that have reported the
+     * specified ident. Accounts too old to count toward the limit are ignored.
+     */
+    protected void adjustFreeAccountCount (String machIdent, Date created, int delta)
+    {
+        Date day = Date.valueOf(created.toLocalDate());
+        if (!day.after(Calendars.now().addDays(RECENT_ACCOUNT_CUTOFF).toSQLDate())) {
+            return;
+        }
+
+        Key<FreeAccountCountRecord> key = FreeAccountCountRecord.getKey(machIdent, day);
+        if (updatePartial(key, FreeAccountCountRecord.ACCOUNTS,
+                          FreeAccountCountRecord.ACCOUNTS.plus(delta)) > 0 || delta < 0) {
+            // a missing count can't be decremented; the next rebuild will sort it out
+            return;
+        }
+        try {
+            insert(new FreeAccountCountRecord(machIdent, day, delta));
+        } catch (DuplicateKeyException dke) {
+            // someone else created it in the meantime
+            updatePartial(key, FreeAccountCountRecord.ACCOUNTS,
+                          FreeAccountCountRecord.ACCOUNTS.plus(delta));
+        }
+    }
+
+    /**
+     * Returns true if an account with the supplied name and flags counts toward its machines'
+     * free accounts: that is, it has not been deleted and has never bought coins.
+     */
+    protected static boolean isCountedFree (String username, int flags)
+    {
+        return username.indexOf('=') < 0 && (flags & OOOUser.HAS_BOUGHT_COINS_FLAG) == 0;
+    }
+
+    /**
+     * Notes a change to the specified user's flags in our bitmap index, if we have one.
+     */
+    protected void noteFlags (int userId, int setMask, int clearMask)
+    {
+        UserBitmapIndex index = _bitmapIndex;
+        if (index != null) {
+            index.noteFlags(userId, setMask, clearMask);
+        }
+    }
+
+    /**
+     * Returns the name of the database column that backs the supplied field.
+     */
+    protected String columnName (ColumnExp<?> column)
+    {
+        return _ctx.getMarshaller(column.getPersistentClass())
+            .getFieldMarshaller(column.name).getColumnName();
+    }
+
+    /**
+     * Updates the expiry of the specified session, either immediately or via our session refresher.
+     *
+     * @return true if the session exists, false if it does not.
+     */
+    protected boolean updateSessionExpiry (String authcode, Date expires)
+    {
+        SessionRefresher refresher = _refresher;
+        if (refresher != null && refresher.noteRefresh(authcode, expires)) {
+            return true;
+        }
+        int updated = updatePartial(SessionRecord.getKey(authcode), SessionRecord.EXPIRES, expires);
+        invalidateSession(authcode);
+        if (updated == 1 && refresher != null) {
+            refresher.noteWritten(authcode, expires);
+        }
+        return updated == 1;
+    }
+
+    /**
+     * Removes the specified session from our session cache, if we have one.
+     */
+    protected void invalidateSession (String authcode)
+    {
+        SessionCache cache = _sessionCache;
+        if (cache != null) {
+            cache.invalidateSession(authcode);
+        }
+    }
+
+    /**
+     * Removes all sessions for the specified user from our session cache, if we have one.
+     */
+    protected void invalidateUser (int userId)
+    {
+        SessionCache cache = _sessionCache;
+        if (cache != null) {
+            cache.invalidateUser(userId);
+        }
     }
 
     /**
@@ -1253,6 +2444,408 @@ public class DepotUserRepository extends DepotRepository
         return (record == null ? null : record.toUser());
     }
 
+    /**
+     * Loads the users with the supplied ids.
+     */
+    protected List<OOOUser> loadUsersById (Collection<Integer> userIds)
+    {
+        List<OOOUser> users = Lists.newArrayList();
+        for (List<Integer> chunk : Iterables.partition(Sets.newHashSet(userIds), MAX_USER_BATCH)) {
+            for (OOOUserRecord record : from(OOOUserRecord.class)
+                     .where(OOOUserRecord.USER_ID.in(chunk)).select()) {
+                users.add(record.toUser());
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Updates the banned status of the supplied users on the specified site. The tokens of the
+     * users whose status changed are written with a single statement per chunk of users. When
+     * banning, the machine idents of the users whose status changed are tainted; when unbanning,
+     * they are optionally untainted. Users who are already banned (or unbanned) are left alone.
+     *
+     * @return the users whose banned status was updated.
+     */
+    protected Collection<OOOUser> setBanned (
+        int site, Collection<OOOUser> users, boolean banned, boolean untaint)
+    {
+        if (users.isEmpty() || OOOUser.getBannedToken(site) == 0) {
+            return Collections.emptyList();
+        }
+
+        List<OOOUser> updated = Lists.newArrayList();
+        Map<Integer, byte[]> tokens = Maps.newHashMap();
+        for (OOOUser user : users) {
+            if (user.isBanned(site) == banned || !user.setBanned(site, banned)) {
+                continue;
+            }
+            updated.add(user);
+            tokens.put(user.userId, user.tokens);
+        }
+        if (updated.isEmpty()) {
+            return updated;
+        }
+        updateTokens(tokens);
+
+        Set<Integer> userIds = tokens.keySet();
+        if (banned) {
+            addTaintedIdents(loadMachineIdents(userIds));
+        } else if (untaint) {
+            removeTaintedIdents(loadMachineIdents(userIds));
+        }
+        return updated;
+    }
+
+    /**
+     * Writes the supplied tokens of the supplied users, with a single statement per chunk of
+     * users.
+     */
+    protected void updateTokens (Map<Integer, byte[]> tokens)
+    {
+        for (final List<Integer> chunk : Iterables.partition(tokens.keySet(), MAX_USER_BATCH)) {
+            List<SQLExpression<?>> cases = Lists.newArrayListWithCapacity(chunk.size() * 2 + 1);
+            List<Key<OOOUserRecord>> keys = Lists.newArrayListWithCapacity(chunk.size());
+            final Map<Integer, byte[]> ctokens = Maps.newHashMap();
+            for (int userId : chunk) {
+                cases.add(OOOUserRecord.USER_ID.eq(userId));
+                cases.add(Exps.value(tokens.get(userId)));
+                keys.add(OOOUserRecord.getKey(userId));
+                ctokens.put(userId, tokens.get(userId));
+            }
+            cases.add(OOOUserRecord.TOKENS);
+            final Case<byte[]> update =
+                new Case<byte[]>(cases.toArray(new SQLExpression<?>[cases.size()]));
+            final KeySet<OOOUserRecord> invalidator = KeySet.newKeySet(OOOUserRecord.class, keys);
+            Transaction.perform(_ctx, new Runnable() {
+                public void run () {
+                    updatePartial(OOOUserRecord.class, new Where(OOOUserRecord.USER_ID.in(chunk)),
+                                  invalidator, OOOUserRecord.TOKENS, update);
+                    writeUserTokens(ctokens);
+                }
+            });
+            for (int userId : chunk) {
+                invalidateUser(userId);
+            }
+        }
+    }
+
+    /**
+     * Replaces the rows of the token table for the supplied users with the supplied tokens.
+     */
+    protected void writeUserTokens (Map<Integer, byte[]> tokens)
+    {
+        deleteAll(UserTokenRecord.class,
+                  new Where(UserTokenRecord.USER_ID.in(tokens.keySet())));
+
+        final List<UserTokenRecord> records = Lists.newArrayList();
+        for (Map.Entry<Integer, byte[]> entry : tokens.entrySet()) {
+            if (entry.getValue() != null) {
+                Set<Byte> seen = Sets.newHashSet();
+                for (byte token : entry.getValue()) {
+                    if (seen.add(token)) {
+                        records.add(new UserTokenRecord(entry.getKey(), token));
+                    }
+                }
+            }
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+
+        final String table = _ctx.getMarshaller(UserTokenRecord.class).getTableName();
+        final String userId = columnName(UserTokenRecord.USER_ID);
+        final String token = columnName(UserTokenRecord.TOKEN);
+        _ctx.invoke(new Modifier() {
+            @Override protected int invoke (Connection conn, DatabaseLiaison liaison)
+                throws SQLException {
+                StringBuilder query = new StringBuilder("insert into ")
+                    .append(liaison.tableSQL(table)).append(" (")
+                    .append(liaison.columnSQL(userId)).append(", ")
+                    .append(liaison.columnSQL(token)).append(") values ");
+                for (int ii = 0, ll = records.size(); ii < ll; ii++) {
+                    query.append(ii == 0 ? "(?, ?)" : ", (?, ?)");
+                }
+                PreparedStatement stmt = conn.prepareStatement(query.toString());
+                try {
+                    int idx = 1;
+                    for (UserTokenRecord record : records) {
+                        stmt.setInt(idx++, record.userId);
+                        stmt.setByte(idx++, record.token);
+                    }
+                    return stmt.executeUpdate();
+                } finally {
+                    stmt.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Splits the supplied names into chunks for {@link #filterCoinBuyers}. Chunks are sized to
+     * spread the names over a reasonable number of queries, within limits on the number of names
+     * and total name length per query.
+     */
+    protected static List<List<String>> chunkNames (Collection<String> names)
+    {
+        int chunkSize = (names.size() + FILTER_COIN_TARGET_CHUNKS - 1) / FILTER_COIN_TARGET_CHUNKS;
+        chunkSize = Math.max(FILTER_COIN_MIN_BATCH, Math.min(FILTER_COIN_MAX_BATCH, chunkSize));
+
+        List<List<String>> chunks = Lists.newArrayList();
+        List<String> chunk = Lists.newArrayList();
+        int chars = 0;
+        for (String name : names) {
+            if (chunk.size() >= chunkSize || (!chunk.isEmpty() &&
+                                              chars + name.length() > FILTER_COIN_MAX_CHARS)) {
+                chunks.add(chunk);
+                chunk = Lists.newArrayList();
+                chars = 0;
+            }
+            chunk.add(name);
+            chars += name.length();
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * Returns those of the supplied usernames that have purchased coins, with a single query.
+     */
+    protected List<String> loadCoinBuyers (List<String> usernames)
+    {
+        return from(OOOUserRecord.class).noCache()
+            .join(OOOUserRecord.USER_ID, OOOBillAuxDataRecord.USER_ID)
+            .where(OOOUserRecord.USERNAME.in(usernames),
+                   Ops.not(OOOBillAuxDataRecord.FIRST_COIN_BUY.isNull()))
+            .select(OOOUserRecord.USERNAME);
+    }
+
+    /**
+     * Returns those of the supplied usernames that have purchased coins, by loading them into a
+     * temporary table and joining it against the user and billing tables. The temporary table's
+     * column is copied from the user table's username column, so that it has the same type,
+     * character set and collation, and the join compares names exactly as an {@code in} clause
+     * against that column would.
+     */
+    protected Set<String> filterCoinBuyersViaTable (final Collection<String> usernames)
+    {
+        final Set<String> filtered = Sets.newHashSet();
+        final String users = _ctx.getMarshaller(OOOUserRecord.class).getTableName();
+        final String billing = _ctx.getMarshaller(OOOBillAuxDataRecord.class).getTableName();
+        final String username = columnName(OOOUserRecord.USERNAME);
+        final String userId = columnName(OOOUserRecord.USER_ID);
+        final String billUserId = columnName(OOOBillAuxDataRecord.USER_ID);
+        final String firstBuy = columnName(OOOBillAuxDataRecord.FIRST_COIN_BUY);
+        // although this is a query, creating, filling and dropping the temporary table are writes,
+        // which need the writable connection that a modifier (unlike a fetcher) is given
+        _ctx.invoke(new Modifier() {
+            @Override protected int invoke (Connection conn, DatabaseLiaison liaison)
+                throws SQLException {
+                String table = liaison.tableSQL(FILTER_COIN_TABLE);
+                String name = liaison.columnSQL(username);
+                Statement stmt = conn.createStatement();
+                try {
+                    stmt.executeUpdate("create temporary table " + table + " as select " + name +
+                                       " from " + liaison.tableSQL(users) + " where 1 = 0");
+                    try {
+                        for (List<String> batch :
+                                 Iterables.partition(usernames, FILTER_COIN_MAX_BATCH)) {
+                            StringBuilder query = new StringBuilder("insert into ")
+                                .append(table).append(" (").append(name).append(") values ");
+                            for (int ii = 0, ll = batch.size(); ii < ll; ii++) {
+                                query.append(ii == 0 ? "(?)" : ", (?)");
+                            }
+                            PreparedStatement insert = conn.prepareStatement(query.toString());
+                            try {
+                                int idx = 1;
+                                for (String user : batch) {
+                                    insert.setString(idx++, user);
+                                }
+                                insert.executeUpdate();
+                            } finally {
+                                insert.close();
+                            }
+                        }
+
+                        ResultSet rs = stmt.executeQuery(
+                            "select u." + name + " from " + liaison.tableSQL(users) + " u, " +
+                            table + " t, " + liaison.tableSQL(billing) + " b where u." + name +
+                            " = t." + name + " and b." + liaison.columnSQL(billUserId) +
+                            " = u." + liaison.columnSQL(userId) + " and b." +
+                            liaison.columnSQL(firstBuy) + " is not null");
+                        while (rs.next()) {
+                            filtered.add(rs.getString(1));
+                        }
+                    } finally {
+                        stmt.executeUpdate("drop table " + table);
+                    }
+                } finally {
+                    stmt.close();
+                }
+                return 0;
+            }
+        });
+        return filtered;
+    }
+
+    /**
+     * Loads the machine idents of the specified user that have been written to the database,
+     * excluding any still queued by our ident recorder.
+     */
+    protected List<String> loadStoredMachineIdents (int userId)
+    {
+        List<String> idents = Lists.newArrayList();
+        for (String machIdent : from(UserIdentRecord.class).noCache()
+                 .where(UserIdentRecord.USER_ID, userId).select(UserIdentRecord.MACH_IDENT)) {
+            if (!StringUtil.isBlank(machIdent)) {
+                idents.add(machIdent);
+            }
+        }
+        return idents;
+    }
+
+    /**
+     * Loads all of the machine idents of the specified users, including any that have yet to be
+     * written by our ident recorder.
+     */
+    protected Set<String> loadMachineIdents (Collection<Integer> userIds)
+    {
+        Set<String> idents = Sets.newHashSet();
+        for (List<Integer> chunk : Iterables.partition(userIds, MAX_USER_BATCH)) {
+            idents.addAll(from(UserIdentRecord.class)
+                          .where(UserIdentRecord.USER_ID.in(chunk))
+                          .select(UserIdentRecord.MACH_IDENT));
+        }
+        IdentRecorder recorder = _identRecorder;
+        if (recorder != null) {
+            for (int userId : userIds) {
+                idents.addAll(recorder.getPendingIdents(userId));
+            }
+        }
+        return idents;
+    }
+
+    /**
+     * Inserts the supplied (untainted) idents into the tainted table with a single statement. If
+     * some of them were tainted in the meantime, inserts them one at a time instead.
+     */
+    protected void insertTaintedIdents (final List<String> machIdents)
+    {
+        // note them first so that the index never misses an ident that is in the database
+        IdentIndex index = _identIndex;
+        if (index != null) {
+            for (String machIdent : machIdents) {
+                index.noteTainted(machIdent);
+            }
+        }
+
+        List<Key<TaintedIdentRecord>> keys = Lists.newArrayListWithCapacity(machIdents.size());
+        for (String machIdent : machIdents) {
+            keys.add(TaintedIdentRecord.getKey(machIdent));
+        }
+        final String table = _ctx.getMarshaller(TaintedIdentRecord.class).getTableName();
+        final String column = columnName(TaintedIdentRecord.MACH_IDENT);
+        try {
+            _ctx.invoke(new Modifier(KeySet.newKeySet(TaintedIdentRecord.class, keys)) {
+                @Override protected int invoke (Connection conn, DatabaseLiaison liaison)
+                    throws SQLException {
+                    StringBuilder query = new StringBuilder("insert into ")
+                        .append(liaison.tableSQL(table)).append(" (")
+                        .append(liaison.columnSQL(column)).append(") values ");
+                    for (int ii = 0, ll = machIdents.size(); ii < ll; ii++) {
+                        query.append(ii == 0 ? "(?)" : ", (?)");
+                    }
+                    PreparedStatement stmt = conn.prepareStatement(query.toString());
+                    try {
+                        int idx = 1;
+                        for (String machIdent : machIdents) {
+                            stmt.setString(idx++, machIdent);
+                        }
+                        return stmt.executeUpdate();
+                    } finally {
+                        stmt.close();
+                    }
+                }
+            });
+        } catch (DuplicateKeyException dke) {
+            for (String machIdent : machIdents) {
+                addTaintedIdent(machIdent);
+            }
+        }
+    }
+
+    /**
+     * Maps each of the supplied usernames to whether a user with that name is in the supplied
+     * users.
+     */
+    protected static Map<String, Boolean> toNameResults (
+        Collection<String> usernames, Collection<OOOUser> users)
+    {
+        Set<String> names = Sets.newHashSet();
+        for (OOOUser user : users) {
+            names.add(user.username.toLowerCase());
+        }
+        Map<String, Boolean> results = Maps.newLinkedHashMap();
+        for (String username : usernames) {
+            results.put(username, names.contains(username.toLowerCase()));
+        }
+        return results;
+    }
+
+    /**
+     * Maps each of the supplied user ids to whether a user with that id is in the supplied
+     * users.
+     */
+    protected static Map<Integer, Boolean> toIdResults (
+        Collection<Integer> userIds, Collection<OOOUser> users)
+    {
+        Set<Integer> ids = Sets.newHashSet();
+        for (OOOUser user : users) {
+            ids.add(user.userId);
+        }
+        Map<Integer, Boolean> results = Maps.newLinkedHashMap();
+        for (Integer userId : userIds) {
+            results.put(userId, ids.contains(userId));
+        }
+        return results;
+    }
+
+    /**
+     * Resolves the machine identifiers of all of the supplied users, using a query per chunk of
+     * users.
+     */
+    protected void resolveIdents (Collection<OOOUser> users)
+    {
+        Map<Integer, List<String>> idents = Maps.newHashMap();
+        for (OOOUser user : users) {
+            idents.put(user.userId, Lists.<String>newArrayList());
+        }
+        for (List<Integer> chunk : Iterables.partition(idents.keySet(), MAX_USER_BATCH)) {
+            for (Tuple2<Integer, String> row : from(UserIdentRecord.class)
+                     .where(UserIdentRecord.USER_ID.in(chunk))
+                     .select(UserIdentRecord.USER_ID, UserIdentRecord.MACH_IDENT)) {
+                if (!StringUtil.isBlank(row.b)) {
+                    idents.get(row.a).add(row.b);
+                }
+            }
+        }
+        IdentRecorder recorder = _identRecorder;
+        for (OOOUser user : users) {
+            List<String> uidents = idents.get(user.userId);
+            if (recorder != null) {
+                for (String machIdent : recorder.getPendingIdents(user.userId)) {
+                    if (!uidents.contains(machIdent)) {
+                        uidents.add(machIdent);
+                    }
+                }
+            }
+            user.machIdents = uidents.toArray(new String[uidents.size()]);
+            Arrays.sort(user.machIdents); // sort the idents in java to ensure correct collation
+        }
+    }
+
     /**
      * Optionally resolves machine identifiers for the supplied user.
      */
@@ -1269,15 +2862,38 @@ public class DepotUserRepository extends DepotRepository
     {
         classes.add(AffiliateTagRecord.class);
         classes.add(BannedIdentRecord.class);
+        classes.add(FreeAccountCountRecord.class);
         classes.add(HistoricalUserRecord.class);
         classes.add(OOOAuxDataRecord.class);
         classes.add(OOOUserRecord.class);
         classes.add(SessionRecord.class);
         classes.add(TaintedIdentRecord.class);
         classes.add(UserIdentRecord.class);
+        classes.add(UserTokenRecord.class);
         classes.add(ValidateDepotRecord.class);
     }
 
+    /** Resolves users by session authcode without going to the database, or null. */
+    protected volatile SessionCache _sessionCache;
+
+    /** Coalesces session expiry updates, or null. */
+    protected volatile SessionRefresher _refresher;
+
+    /** Recognizes clean machine idents without going to the database, or null. */
+    protected volatile IdentIndex _identIndex;
+
+    /** Writes the machine idents reported during validation in batches, or null. */
+    protected volatile IdentRecorder _identRecorder;
+
+    /** Indexes users by flag, billing status and site, or null. */
+    protected volatile UserBitmapIndex _bitmapIndex;
+
+    /** Deletes expired sessions and validation records in chunks, or null. */
+    protected volatile ChunkedPruner _pruner;
+
+    /** Runs the chunks of large queries in parallel, or null. */
+    protected volatile ExecutorService _queryExecutor;
+
     protected static final Builder3<OOOUserCard, Integer, String, Integer> BUILD_OOO_USER_CARD =
             new Builder3<OOOUserCard, Integer, String, Integer>() {
         public OOOUserCard build (Integer userId, String userName, Integer flags) {
@@ -1291,4 +2907,35 @@ public class DepotUserRepository extends DepotRepository
 
     /** The number of free accounts that can be created per machine. */
     protected static final int MAX_FREE_ACCOUNTS_PER_MACHINE = 2;
+
+    /** The number of user ids whose creation dates are examined per query when rebuilding the
+     * free account counts. */
+    protected static final int FREE_COUNT_ID_CHUNK = 50000;
+
+    /** The maximum number of sessions updated by a single statement. */
+    protected static final int MAX_SESSION_BATCH = 500;
+
+    /** The maximum number of users loaded or updated by a single statement. */
+    protected static final int MAX_USER_BATCH = 500;
+
+    /** The number of user ids loaded per query when paging through the holders of a token. */
+    protected static final int TOKEN_PAGE_SIZE = 1000;
+
+    /** The maximum number of idents tainted or untainted by a single statement. */
+    protected static final int MAX_IDENT_BATCH = 500;
+
+    /** The number of queries over which {@link #filterCoinBuyers} aims to spread its names, and
+     * the limits on the number of names it looks up with a single query. */
+    protected static final int FILTER_COIN_TARGET_CHUNKS = 16;
+    protected static final int FILTER_COIN_MIN_BATCH = 250;
+    protected static final int FILTER_COIN_MAX_BATCH = 2000;
+
+    /** The maximum total length of the names looked up by a single coin buyer query. */
+    protected static final int FILTER_COIN_MAX_CHARS = 64 * 1024;
+
+    /** The number of names beyond which coin buyers are found via a temporary table. */
+    protected static final int FILTER_COIN_TABLE_SIZE = 50000;
+
+    /** The name of the temporary table into which names are loaded to find coin buyers. */
+    protected static final String FILTER_COIN_TABLE = "FILTER_COIN_NAMES";
 }
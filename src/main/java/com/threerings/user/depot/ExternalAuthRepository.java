@@ -3,11 +3,18 @@
 
 package com.threerings.user.depot;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.ObjIntConsumer;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -16,6 +23,7 @@ import com.samskivert.depot.DepotRepository;
 import com.samskivert.depot.PersistenceContext;
 import com.samskivert.depot.PersistentRecord;
 import com.samskivert.depot.expression.FluentExp;
+import com.samskivert.util.HashIntMap;
 import com.samskivert.util.Tuple;
 
 import com.threerings.user.ExternalAuther;
@@ -93,6 +101,40 @@ public class ExternalAuthRepository extends DepotRepository
         return ids;
     }
 
+    /**
+     * Passes the ({@code exid, ooouser id}) mapping of each member in the supplied list that is
+     * found in the database to the supplied consumer, without loading records or boxing ids.
+     */
+    public void loadUserIds (final ExternalAuther auther, Collection<String> externalIds,
+                             final ObjIntConsumer<String> consumer)
+    {
+        Preconditions.checkNotNull(auther);
+        for (final List<String> chunk : Iterables.partition(externalIds, MAX_BATCH)) {
+            _ctx.invoke(new RowStreamer() {
+                @Override protected PreparedStatement createStatement (Connection conn)
+                    throws SQLException {
+                    StringBuilder query = new StringBuilder("select ")
+                        .append(columnSQL(ExternalAuthRecord.EXTERNAL_ID)).append(", ")
+                        .append(columnSQL(ExternalAuthRecord.USER_ID)).append(" from ")
+                        .append(tableSQL(ExternalAuthRecord.class)).append(" where ")
+                        .append(columnSQL(ExternalAuthRecord.AUTHER)).append(" = ? and ")
+                        .append(columnSQL(ExternalAuthRecord.EXTERNAL_ID)).append(" in (");
+                    PreparedStatement stmt = conn.prepareStatement(
+                        appendParams(query, chunk.size()).append(")").toString());
+                    int idx = 1;
+                    stmt.setByte(idx++, auther.toByte());
+                    for (String externalId : chunk) {
+                        stmt.setString(idx++, externalId);
+                    }
+                    return stmt;
+                }
+                @Override protected void handleRow (ResultSet rs) throws SQLException {
+                    consumer.accept(rs.getString(1), rs.getInt(2));
+                }
+            });
+        }
+    }
+
     /**
      * Loads a mapping of ({@code ooouser id -> exid}) for all members in the supplied list that
      * are found in the database.
@@ -109,6 +151,52 @@ public class ExternalAuthRepository extends DepotRepository
         return ids;
     }
 
+    /**
+     * Loads a mapping of ({@code ooouser id -> exid}) for all members in the supplied array that
+     * are found in the database.
+     */
+    public HashIntMap<String> loadExternalIds (ExternalAuther auther, int[] oooIds)
+    {
+        final HashIntMap<String> ids = new HashIntMap<String>();
+        loadExternalIds(auther, oooIds, new ObjIntConsumer<String>() {
+            public void accept (String externalId, int userId) {
+                ids.put(userId, externalId);
+            }
+        });
+        return ids;
+    }
+
+    /**
+     * Passes the ({@code exid, ooouser id}) mapping of each member in the supplied array that is
+     * found in the database to the supplied consumer, without loading records or boxing ids.
+     */
+    public void loadExternalIds (final ExternalAuther auther, final int[] oooIds,
+                                 final ObjIntConsumer<String> consumer)
+    {
+        Preconditions.checkNotNull(auther);
+        for (int ii = 0; ii < oooIds.length; ii += MAX_BATCH) {
+            final int offset = ii, length = Math.min(MAX_BATCH, oooIds.length - ii);
+            _ctx.invoke(new RowStreamer() {
+                @Override protected PreparedStatement createStatement (Connection conn)
+                    throws SQLException {
+                    StringBuilder query = new StringBuilder("select ")
+                        .append(columnSQL(ExternalAuthRecord.EXTERNAL_ID)).append(", ")
+                        .append(columnSQL(ExternalAuthRecord.USER_ID)).append(" from ")
+                        .append(tableSQL(ExternalAuthRecord.class)).append(" where ")
+                        .append(columnSQL(ExternalAuthRecord.AUTHER)).append(" = ? and ")
+                        .append(columnSQL(ExternalAuthRecord.USER_ID)).append(" in (");
+                    PreparedStatement stmt = conn.prepareStatement(
+                        appendInts(query, oooIds, offset, length).append(")").toString());
+                    stmt.setByte(1, auther.toByte());
+                    return stmt;
+                }
+                @Override protected void handleRow (ResultSet rs) throws SQLException {
+                    consumer.accept(rs.getString(1), rs.getInt(2));
+                }
+            });
+        }
+    }
+
     /**
      * Creates a mapping for the specified user to the supplied external credentials.
      */
@@ -140,5 +228,8 @@ public class ExternalAuthRepository extends DepotRepository
     {
         classes.add(ExternalAuthRecord.class);
     }
+
+    /** The maximum number of ids looked up by a single query. */
+    protected static final int MAX_BATCH = 500;
 }
 
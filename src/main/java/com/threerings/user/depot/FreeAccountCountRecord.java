@@ -0,0 +1,70 @@
+//
+// $Id$
+
+package com.threerings.user.depot;
+
+import java.sql.Date;
+
+import com.samskivert.depot.Key;
+import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.annotation.Column;
+import com.samskivert.depot.annotation.Entity;
+import com.samskivert.depot.annotation.Id;
+import com.samskivert.depot.expression.ColumnExp;
+
+/**
+ * Counts the free (not deleted, never bought coins) accounts created on a particular day that
+ * have reported a particular machine identifier. Maintained incrementally by {@link
+ * DepotUserRepository} and periodically rebuilt from the user and ident tables.
+ */
+@Entity(name="FREE_ACCOUNT_COUNTS")
+public class FreeAccountCountRecord extends PersistentRecord
+{
+    // AUTO-GENERATED: FIELDS START
+    public static final Class<FreeAccountCountRecord> _R = FreeAccountCountRecord.class;
+    public static final ColumnExp<String> MACH_IDENT = colexp(_R, "machIdent");
+    public static final ColumnExp<Date> CREATED = colexp(_R, "created");
+    public static final ColumnExp<Integer> ACCOUNTS = colexp(_R, "accounts");
+    // AUTO-GENERATED: FIELDS END
+
+    public static final int SCHEMA_VERSION = 1;
+
+    /** A 'unique' id for a specific machine we have seen. */
+    @Id @Column(name="MACH_IDENT")
+    public String machIdent;
+
+    /** The day on which the counted accounts were created. */
+    @Id @Column(name="CREATED")
+    public Date created;
+
+    /** The number of free accounts created on that day that have reported this machine. */
+    @Column(name="ACCOUNTS")
+    public int accounts;
+
+    /** Blank constructor for the unserialization business. */
+    public FreeAccountCountRecord ()
+    {
+    }
+
+    /** A constructor that populates this record. */
+    public FreeAccountCountRecord (String machIdent, Date created, int accounts)
+    {
+        this.machIdent = machIdent;
+        this.created = created;
+        this.accounts = accounts;
+    }
+
+    // AUTO-GENERATED: METHODS START
+    /**
+     * Create and return a primary {@link Key} to identify a {@link FreeAccountCountRecord}
+     * with the supplied key values.
+     */
+    public static Key<FreeAccountCountRecord> getKey (String machIdent, Date created)
+    {
+        return newKey(_R, machIdent, created);
+    }
+
+    /** Register the key fields in an order matching the getKey() factory. */
+    static { registerKeyFields(MACH_IDENT, CREATED); }
+    // AUTO-GENERATED: METHODS END
+}
@@ -0,0 +1,251 @@
+//
+// $Id$
+
+package com.threerings.user.depot;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import com.samskivert.depot.DatabaseException;
+import com.samskivert.depot.util.Tuple2;
+import com.samskivert.util.Interval;
+import com.samskivert.util.RunQueue;
+
+import static com.threerings.user.Log.log;
+
+/**
+ * Keeps an in-memory index of the tainted and banned machine idents so that the common case of
+ * validating a clean ident needs no database query. Each ident is stored as a 64-bit fingerprint
+ * in a sorted array, which costs eight bytes per ident rather than a string per ident.
+ *
+ * <p> The index may report false positives (a fingerprint collision, or an ident that has been
+ * untainted or unbanned since it was loaded), so a hit is always confirmed against the database
+ * by the repository. It never reports a false negative for changes made through this server's
+ * repository, which notes additions as they are made. Idents tainted or banned by other servers
+ * are picked up by the periodic reload.
+ */
+public class IdentIndex
+{
+    /**
+     * Creates an index that loads its idents from the supplied repository and reloads them every
+     * {@code reloadInterval} milliseconds. The caller must {@link #reload} the index before it is
+     * installed in the repository.
+     *
+     * @param reloadQueue the run queue on which to reload, or null to reload on the interval
+     * thread.
+     */
+    public IdentIndex (DepotUserRepository repo, RunQueue reloadQueue, long reloadInterval)
+    {
+        _repo = repo;
+        _reloader = new Interval(reloadQueue == null ? Interval.RUN_DIRECT : reloadQueue) {
+            @Override public void expired () {
+                try {
+                    reload();
+                } catch (DatabaseException de) {
+                    log.warning("Failed to reload ident index", de);
+                }
+            }
+        };
+        _reloader.schedule(reloadInterval, true);
+    }
+
+    /**
+     * Returns false if the specified ident is definitely not tainted, true if it may be.
+     */
+    public boolean mayBeTainted (String machIdent)
+    {
+        return _tainted.contains(fingerprint(machIdent));
+    }
+
+    /**
+     * Returns false if the specified ident is definitely not banned on the specified site, true if
+     * it may be.
+     */
+    public boolean mayBeBanned (String machIdent, int siteId)
+    {
+        return _banned.contains(fingerprint(machIdent, siteId));
+    }
+
+    /**
+     * Notes that the specified ident has been tainted.
+     */
+    public synchronized void noteTainted (String machIdent)
+    {
+        long print = fingerprint(machIdent);
+        _tainted.added.add(print);
+        if (_reloadTainted != null) {
+            _reloadTainted.add(print);
+        }
+    }
+
+    /**
+     * Notes that the specified ident has been banned on the specified site.
+     */
+    public synchronized void noteBanned (String machIdent, int siteId)
+    {
+        long print = fingerprint(machIdent, siteId);
+        _banned.added.add(print);
+        if (_reloadBanned != null) {
+            _reloadBanned.add(print);
+        }
+    }
+
+    /**
+     * Returns the number of tainted and banned idents in the index.
+     */
+    public int size ()
+    {
+        return _tainted.size() + _banned.size();
+    }
+
+    /**
+     * Reloads all of the tainted and banned idents from the database. Idents noted while the
+     * reload is in progress are retained.
+     */
+    public void reload ()
+        throws DatabaseException
+    {
+        synchronized (_reloadLock) {
+            doReload();
+        }
+    }
+
+    protected void doReload ()
+        throws DatabaseException
+    {
+        // idents noted from here on are recorded both in the current sets and in the new ones;
+        // those already noted are carried over too, as their writes may not have committed before
+        // we read the database
+        synchronized (this) {
+            _reloadTainted = newPrintSet();
+            _reloadTainted.addAll(_tainted.added);
+            _reloadBanned = newPrintSet();
+            _reloadBanned.addAll(_banned.added);
+        }
+
+        try {
+            long[] tainted = new long[RELOAD_CHUNK_SIZE];
+            int count = 0;
+            String after = "";
+            while (true) {
+                List<String> idents = _repo.loadTaintedIdentsAfter(after, RELOAD_CHUNK_SIZE);
+                if (idents.isEmpty()) {
+                    break;
+                }
+                if (count + idents.size() > tainted.length) {
+                    tainted = Arrays.copyOf(tainted, Math.max(tainted.length * 2,
+                                                              count + idents.size()));
+                }
+                for (String ident : idents) {
+                    tainted[count++] = fingerprint(ident);
+                }
+                after = idents.get(idents.size() - 1);
+            }
+            tainted = Arrays.copyOf(tainted, count);
+
+            List<Tuple2<String, Integer>> bans = _repo.loadBannedIdents();
+            long[] banned = new long[bans.size()];
+            for (int ii = 0; ii < banned.length; ii++) {
+                banned[ii] = fingerprint(bans.get(ii).a, bans.get(ii).b);
+            }
+
+            synchronized (this) {
+                _tainted = new PrintSet(tainted, _reloadTainted).pruneAdded();
+                _banned = new PrintSet(banned, _reloadBanned).pruneAdded();
+            }
+
+        } finally {
+            synchronized (this) {
+                _reloadTainted = null;
+                _reloadBanned = null;
+            }
+        }
+    }
+
+    /**
+     * Stops periodically reloading the index.
+     */
+    public void shutdown ()
+    {
+        _reloader.cancel();
+    }
+
+    /** A set of fingerprints loaded from the database plus those noted since. */
+    protected static class PrintSet
+    {
+        /** The sorted fingerprints loaded from the database. */
+        public final long[] loaded;
+
+        /** The fingerprints noted since the load began. */
+        public final Set<Long> added;
+
+        public PrintSet (long[] loaded, Set<Long> added) {
+            Arrays.sort(loaded);
+            this.loaded = loaded;
+            this.added = added;
+        }
+
+        /** Drops the noted fingerprints that were loaded anyway. */
+        public PrintSet pruneAdded () {
+            for (Iterator<Long> iter = added.iterator(); iter.hasNext(); ) {
+                if (Arrays.binarySearch(loaded, iter.next()) >= 0) {
+                    iter.remove();
+                }
+            }
+            return this;
+        }
+
+        public boolean contains (long print) {
+            return Arrays.binarySearch(loaded, print) >= 0 || added.contains(print);
+        }
+
+        public int size () {
+            return loaded.length + added.size();
+        }
+    }
+
+    protected static Set<Long> newPrintSet ()
+    {
+        return ConcurrentHashMap.newKeySet();
+    }
+
+    protected static long fingerprint (String machIdent)
+    {
+        return HASH.hashString(machIdent, StandardCharsets.UTF_8).asLong();
+    }
+
+    protected static long fingerprint (String machIdent, int siteId)
+    {
+        return HASH.newHasher().putInt(siteId).putString(machIdent, StandardCharsets.UTF_8)
+            .hash().asLong();
+    }
+
+    /** The repository from which we load our idents. */
+    protected DepotUserRepository _repo;
+
+    /** Periodically reloads our idents. */
+    protected Interval _reloader;
+
+    /** The tainted and banned ident fingerprints. */
+    protected volatile PrintSet _tainted = new PrintSet(new long[0], newPrintSet());
+    protected volatile PrintSet _banned = new PrintSet(new long[0], newPrintSet());
+
+    /** Prevents reloads from overlapping. */
+    protected Object _reloadLock = new Object();
+
+    /** Fingerprints noted while a reload is in progress, or null. */
+    protected Set<Long> _reloadTainted, _reloadBanned;
+
+    /** Hashes idents into fingerprints. */
+    protected static final HashFunction HASH = Hashing.murmur3_128();
+
+    /** The number of tainted idents loaded per query when reloading. */
+    protected static final int RELOAD_CHUNK_SIZE = 10000;
+}
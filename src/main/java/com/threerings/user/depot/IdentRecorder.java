@@ -0,0 +1,226 @@
+//
+// $Id$
+
+package com.threerings.user.depot;
+
+import java.sql.Date;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+
+import com.samskivert.depot.DatabaseException;
+import com.samskivert.util.Interval;
+import com.samskivert.util.RunQueue;
+
+import com.threerings.user.OOOUser;
+
+import static com.threerings.user.Log.log;
+
+/**
+ * Records new {@code userId -> machIdent} mappings off of the login path. Mappings reported
+ * during validation are queued and periodically written in multi-row batches. Queued mappings
+ * are included in the repository's ident lookups until they are written, so a queued mapping is
+ * never missing from a lookup made through this server's repository.
+ *
+ * <p> A batch that fails to be written is retried at the next flush, and {@link #shutdown} writes
+ * everything that is still queued. If too many mappings are queued (because the database is
+ * unavailable, say), further mappings are written immediately by the caller.
+ */
+public class IdentRecorder
+{
+    /** A queued mapping, along with the user information reported by ident lookups while it is
+     * queued. The user's current information is used to count free accounts when it is
+     * written. */
+    public static class Ident
+    {
+        public final int userId;
+        public final String machIdent;
+        public final String username;
+        public final int flags;
+        public final Date created;
+
+        public Ident (OOOUser user, String machIdent) {
+            this.userId = user.userId;
+            this.machIdent = machIdent;
+            this.username = user.username;
+            this.flags = user.flags;
+            this.created = user.created;
+        }
+    }
+
+    /**
+     * Creates a recorder that will write queued mappings every {@code flushInterval} milliseconds
+     * and allows at most {@code maxPending} mappings to be queued.
+     *
+     * @param flushQueue the run queue on which to flush, or null to flush on the interval thread.
+     */
+    public IdentRecorder (DepotUserRepository repo, RunQueue flushQueue, long flushInterval,
+                          int maxPending)
+    {
+        _repo = repo;
+        _maxPending = maxPending;
+        _flusher = new Interval(flushQueue == null ? Interval.RUN_DIRECT : flushQueue) {
+            @Override public void expired () {
+                flush();
+            }
+        };
+        _flusher.schedule(flushInterval, true);
+    }
+
+    /**
+     * Queues the supplied mapping to be written.
+     *
+     * @return true if the mapping was queued, false if too many mappings are already queued and
+     * the caller must write it immediately.
+     */
+    public synchronized boolean record (OOOUser user, String machIdent)
+    {
+        Map<String, Ident> idents = _pending.get(user.userId);
+        if (idents != null && idents.containsKey(machIdent)) {
+            return true;
+        }
+        if (_size >= _maxPending) {
+            return false;
+        }
+        if (idents == null) {
+            _pending.put(user.userId, idents = Maps.<String, Ident>newHashMap());
+        }
+        Ident ident = new Ident(user, machIdent);
+        idents.put(machIdent, ident);
+        _byIdent.put(machIdent, ident);
+        _size++;
+        return true;
+    }
+
+    /**
+     * Discards the queued mappings of the specified user, who has been deleted.
+     */
+    public synchronized void forget (int userId)
+    {
+        Map<String, Ident> idents = _pending.remove(userId);
+        if (idents != null) {
+            for (Ident ident : idents.values()) {
+                _byIdent.remove(ident.machIdent, ident);
+            }
+            _size -= idents.size();
+        }
+    }
+
+    /**
+     * Returns the queued idents of the specified user.
+     */
+    public synchronized Collection<String> getPendingIdents (int userId)
+    {
+        Map<String, Ident> idents = _pending.get(userId);
+        return (idents == null) ? Lists.<String>newArrayList() :
+            Lists.newArrayList(idents.keySet());
+    }
+
+    /**
+     * Returns the queued mappings of any of the supplied idents.
+     */
+    public synchronized List<Ident> getPendingUsers (Collection<String> machIdents)
+    {
+        List<Ident> users = Lists.newArrayList();
+        for (String machIdent : machIdents) {
+            users.addAll(_byIdent.get(machIdent));
+        }
+        return users;
+    }
+
+    /**
+     * Returns the number of mappings queued to be written.
+     */
+    public synchronized int getQueueDepth ()
+    {
+        return _size;
+    }
+
+    /**
+     * Writes all queued mappings. This need not be called by hand, as it is called periodically.
+     *
+     * @return true if all mappings were written, false if some remain queued due to an error.
+     */
+    public boolean flush ()
+    {
+        synchronized (_flushLock) {
+            List<Ident> idents = Lists.newArrayList();
+            synchronized (this) {
+                for (Map<String, Ident> pending : _pending.values()) {
+                    idents.addAll(pending.values());
+                }
+            }
+
+            // write them out in batches, leaving each batch queued (and visible) until written
+            for (List<Ident> batch : Iterables.partition(idents, FLUSH_BATCH_SIZE)) {
+                try {
+                    _repo.addUserIdents(batch);
+                } catch (DatabaseException de) {
+                    log.warning("Failed to write machine idents", "count", batch.size(), de);
+                    return false;
+                }
+                synchronized (this) {
+                    for (Ident ident : batch) {
+                        Map<String, Ident> pending = _pending.get(ident.userId);
+                        Ident written = (pending == null) ? null : pending.remove(ident.machIdent);
+                        if (written != null) {
+                            _byIdent.remove(written.machIdent, written);
+                            _size--;
+                            if (pending.isEmpty()) {
+                                _pending.remove(ident.userId);
+                            }
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Stops periodically flushing and writes all queued mappings.
+     */
+    public void shutdown ()
+    {
+        _flusher.cancel();
+        for (int ii = 0; ii < SHUTDOWN_ATTEMPTS; ii++) {
+            if (flush()) {
+                return;
+            }
+        }
+        log.warning("Failed to write machine idents on shutdown", "lost", getQueueDepth());
+    }
+
+    /** The repository to which we write mappings. */
+    protected DepotUserRepository _repo;
+
+    /** The maximum number of mappings that may be queued. */
+    protected int _maxPending;
+
+    /** Periodically writes our queued mappings. */
+    protected Interval _flusher;
+
+    /** Our queued mappings, by user id and then ident. */
+    protected Map<Integer, Map<String, Ident>> _pending = Maps.newHashMap();
+
+    /** Our queued mappings, by ident, so that lookups needn't scan every queued user. */
+    protected SetMultimap<String, Ident> _byIdent = HashMultimap.create();
+
+    /** The number of queued mappings. */
+    protected int _size;
+
+    /** Prevents flushes from overlapping. */
+    protected Object _flushLock = new Object();
+
+    /** The maximum number of mappings written by a single statement. */
+    protected static final int FLUSH_BATCH_SIZE = 500;
+
+    /** The number of times we try to write our queued mappings when shutting down. */
+    protected static final int SHUTDOWN_ATTEMPTS = 3;
+}
@@ -0,0 +1,205 @@
+//
+// $Id$
+
+package com.threerings.user.depot;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import com.threerings.user.Crypto;
+import com.threerings.user.OOOUser;
+
+import static com.threerings.user.Log.log;
+
+/**
+ * Upgrades password hashes off of the login path. When a user logs in with a password whose hash
+ * is a legacy hash or uses outdated Argon2 parameters, the login code hands the password to the
+ * rehasher and carries on. The new hash is computed on the {@link Crypto#getHashingPool hashing
+ * pool} and written by a single writer thread with a conditional update that only succeeds if the
+ * stored hash is still the one the user logged in with, so a password change made in the meantime
+ * is never overwritten.
+ *
+ * <p> At most a fixed number of rehashes may be pending at once; beyond that (or if the hashing
+ * pool is saturated) rehashes are dropped, and the user will simply be rehashed on a later login.
+ */
+public class PasswordRehasher
+{
+    /**
+     * Creates a rehasher that writes to the supplied repository and allows at most {@code
+     * maxPending} rehashes to be pending at once.
+     */
+    public PasswordRehasher (DepotUserRepository repo, int maxPending)
+    {
+        _repo = repo;
+        _maxPending = maxPending;
+        _writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread (Runnable task) {
+                Thread thread = new Thread(task, "PasswordRehasher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues a rehash of the supplied user's password if their stored hash needs it. The password
+     * array is wiped before this method returns.
+     *
+     * @return true if a rehash was queued, false if none was needed or it was dropped.
+     */
+    public boolean maybeRehash (OOOUser user, char[] password)
+    {
+        try {
+            if (!user.needsRehash()) {
+                return false;
+            }
+            if (_writer.isShutdown()) {
+                _dropped.increment();
+                return false;
+            }
+            if (_pending.incrementAndGet() > _maxPending) {
+                _pending.decrementAndGet();
+                _dropped.increment();
+                return false;
+            }
+
+            final int userId = user.userId;
+            final String oldPassword = user.password;
+            CompletableFuture<String> hash;
+            try {
+                hash = Crypto.hashPasswordAsync(password);
+            } catch (RuntimeException re) {
+                hash = new CompletableFuture<String>();
+                hash.completeExceptionally(re);
+            }
+            hash.whenComplete(new BiConsumer<String, Throwable>() {
+                public void accept (String newPassword, Throwable error) {
+                    if (error != null) {
+                        _dropped.increment();
+                        _pending.decrementAndGet();
+                    } else {
+                        queueWrite(userId, oldPassword, newPassword);
+                    }
+                }
+            });
+            return true;
+
+        } finally {
+            Crypto.wipeArray(password);
+        }
+    }
+
+    /**
+     * Returns the number of rehashes that have been queued but not yet written.
+     */
+    public int getQueueDepth ()
+    {
+        return _pending.get();
+    }
+
+    /**
+     * Returns the number of rehashes that have been written.
+     */
+    public long getCompleted ()
+    {
+        return _completed.sum();
+    }
+
+    /**
+     * Returns the number of rehashes that were dropped because too many were pending, the
+     * hashing pool rejected them or writing them failed.
+     */
+    public long getDropped ()
+    {
+        return _dropped.sum();
+    }
+
+    /**
+     * Returns the number of rehashes that were discarded because the user's password changed
+     * while they were pending.
+     */
+    public long getConflicts ()
+    {
+        return _conflicts.sum();
+    }
+
+    /**
+     * Stops accepting rehashes and waits briefly for pending rehashes to be written.
+     */
+    public void shutdown ()
+    {
+        _writer.shutdown();
+        try {
+            _writer.awaitTermination(SHUTDOWN_WAIT_SECS, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a newly computed hash to be written on our writer thread. Called on whichever thread
+     * completed the hash (the caller of {@link #maybeRehash}, if it completed immediately), so a
+     * writer that has been shut down drops the rehash rather than throwing.
+     */
+    protected void queueWrite (final int userId, final String oldPassword,
+                               final String newPassword)
+    {
+        try {
+            _writer.execute(new Runnable() {
+                public void run () {
+                    try {
+                        write(userId, oldPassword, newPassword);
+                    } finally {
+                        _pending.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            _dropped.increment();
+            _pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * Writes a newly computed hash. Called on our writer thread.
+     */
+    protected void write (int userId, String oldPassword, String newPassword)
+    {
+        try {
+            if (_repo.changePasswordIfUnchanged(userId, oldPassword, newPassword)) {
+                _completed.increment();
+            } else {
+                _conflicts.increment();
+            }
+        } catch (Exception e) {
+            _dropped.increment();
+            log.warning("Failed to write rehashed password", "userId", userId, e);
+        }
+    }
+
+    /** The repository to which we write new hashes. */
+    protected DepotUserRepository _repo;
+
+    /** The maximum number of rehashes that may be pending at once. */
+    protected int _maxPending;
+
+    /** Writes new hashes to the database, one at a time. */
+    protected ExecutorService _writer;
+
+    /** The number of rehashes queued but not yet written. */
+    protected AtomicInteger _pending = new AtomicInteger();
+
+    /** Our metrics. */
+    protected LongAdder _completed = new LongAdder(), _dropped = new LongAdder();
+    protected LongAdder _conflicts = new LongAdder();
+
+    /** How long we wait for pending rehashes when shutting down. */
+    protected static final long SHUTDOWN_WAIT_SECS = 5L;
+}
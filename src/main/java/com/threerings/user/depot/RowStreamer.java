@@ -0,0 +1,105 @@
+//
+// $Id$
+
+package com.threerings.user.depot;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import com.samskivert.depot.PersistenceContext;
+import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.expression.ColumnExp;
+import com.samskivert.depot.impl.Fetcher;
+import com.samskivert.depot.impl.jdbc.DatabaseLiaison;
+
+/**
+ * Runs a hand-built query and passes each row of its result to {@link #handleRow}, so that large
+ * results (of user ids, generally) can be processed without materializing records, tuples or
+ * boxed ids. Invoke it via {@link PersistenceContext#invoke(Fetcher)}, which returns the number
+ * of rows handled. Results are never cached.
+ */
+public abstract class RowStreamer extends Fetcher.Trivial<Integer>
+{
+    @Override // from Operation
+    public Integer invoke (PersistenceContext ctx, Connection conn, DatabaseLiaison liaison)
+        throws SQLException
+    {
+        _ctx = ctx;
+        _liaison = liaison;
+        PreparedStatement stmt = createStatement(conn);
+        try {
+            ResultSet rs = stmt.executeQuery();
+            int rows = 0;
+            while (rs.next()) {
+                handleRow(rs);
+                rows++;
+            }
+            return rows;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Creates and binds the statement to be executed. {@link #tableSQL} and {@link #columnSQL}
+     * may be used to build its query.
+     */
+    protected abstract PreparedStatement createStatement (Connection conn)
+        throws SQLException;
+
+    /**
+     * Handles the current row of the result.
+     */
+    protected abstract void handleRow (ResultSet rs)
+        throws SQLException;
+
+    /**
+     * Returns the quoted name of the table of the specified record.
+     */
+    protected String tableSQL (Class<? extends PersistentRecord> type)
+    {
+        return _liaison.tableSQL(_ctx.getMarshaller(type).getTableName());
+    }
+
+    /**
+     * Returns the quoted name of the specified column.
+     */
+    protected String columnSQL (ColumnExp<?> column)
+    {
+        return _liaison.columnSQL(_ctx.getMarshaller(column.getPersistentClass())
+                                  .getFieldMarshaller(column.name).getColumnName());
+    }
+
+    /**
+     * Appends {@code count} comma separated parameter placeholders to the supplied buffer.
+     */
+    protected static StringBuilder appendParams (StringBuilder buf, int count)
+    {
+        for (int ii = 0; ii < count; ii++) {
+            buf.append(ii == 0 ? "?" : ", ?");
+        }
+        return buf;
+    }
+
+    /**
+     * Appends the specified range of the supplied values to the supplied buffer as a comma
+     * separated list of literals.
+     */
+    protected static StringBuilder appendInts (StringBuilder buf, int[] values, int offset,
+                                               int length)
+    {
+        for (int ii = offset, ll = offset + length; ii < ll; ii++) {
+            if (ii > offset) {
+                buf.append(", ");
+            }
+            buf.append(values[ii]);
+        }
+        return buf;
+    }
+
+    /** The context and liaison with which we are being invoked. */
+    protected PersistenceContext _ctx;
+    protected DatabaseLiaison _liaison;
+}
@@ -0,0 +1,185 @@
+//
+// $Id$
+
+package com.threerings.user.depot;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.SetMultimap;
+
+import com.threerings.user.OOOUser;
+
+/**
+ * A bounded, time-expiring, in-process cache that maps session authcodes to a snapshot of the
+ * user authenticated in that session. This allows {@link DepotUserRepository#loadUserBySession}
+ * to skip the session and user lookups for requests made by recently seen users.
+ *
+ * <p> Entries are invalidated by the repository whenever the session or the user record is
+ * modified through it. Modifications made by other processes are only noticed once an entry
+ * expires, so the expiry time should be kept short when multiple servers share a user database.
+ */
+public class SessionCache
+{
+    /**
+     * Creates a session cache that will hold at most {@code maxSize} sessions, each for at most
+     * {@code expireMillis} milliseconds.
+     */
+    public SessionCache (int maxSize, long expireMillis)
+    {
+        _cache = CacheBuilder.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(expireMillis, TimeUnit.MILLISECONDS)
+            .recordStats()
+            .removalListener(new RemovalListener<String, Entry>() {
+                public void onRemoval (RemovalNotification<String, Entry> note) {
+                    // replacements are always for the same session, so keep our mapping
+                    if (note.getCause() == RemovalCause.REPLACED) {
+                        return;
+                    }
+                    synchronized (_byUser) {
+                        _byUser.remove(note.getValue().record.userId, note.getKey());
+                    }
+                }
+            })
+            .build();
+    }
+
+    /**
+     * Returns a stamp that must be supplied to {@link #put} when caching data that was loaded from
+     * the database. The stamp must be obtained <em>before</em> the data is loaded so that we can
+     * tell whether an invalidation happened while the load was in progress.
+     */
+    public long stamp ()
+    {
+        return _stamp.get();
+    }
+
+    /**
+     * Returns a fresh user for the supplied session or null if the session is not cached or the
+     * cached session has expired.
+     *
+     * @param expireTime sessions that expire before this time will be treated as missing.
+     */
+    public OOOUser get (String authcode, long expireTime)
+    {
+        Entry entry = _cache.getIfPresent(authcode);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires < expireTime) {
+            _cache.invalidate(authcode);
+            return null;
+        }
+        return entry.record.toUser();
+    }
+
+    /**
+     * Caches the supplied session and user records. The data is dropped if any invalidation
+     * happened since the supplied stamp was obtained.
+     */
+    public void put (long stamp, SessionRecord sess, OOOUserRecord record)
+    {
+        synchronized (_byUser) {
+            if (stamp != _stamp.get()) {
+                return;
+            }
+            _byUser.put(record.userId, sess.authcode);
+            _cache.put(sess.authcode, new Entry(sess.expires.getTime(), record));
+        }
+    }
+
+    /**
+     * Removes the specified session from the cache.
+     */
+    public void invalidateSession (String authcode)
+    {
+        // bump the stamp and invalidate under the lock held by put, so that a put that passed its
+        // stamp check can't cache the session after we've invalidated it
+        synchronized (_byUser) {
+            _stamp.incrementAndGet();
+            _cache.invalidate(authcode);
+        }
+    }
+
+    /**
+     * Removes all sessions for the specified user from the cache.
+     */
+    public void invalidateUser (int userId)
+    {
+        List<String> authcodes;
+        synchronized (_byUser) {
+            _stamp.incrementAndGet();
+            authcodes = Lists.newArrayList(_byUser.removeAll(userId));
+        }
+        _cache.invalidateAll(authcodes);
+    }
+
+    /**
+     * Removes all sessions from the cache.
+     */
+    public void clear ()
+    {
+        synchronized (_byUser) {
+            _stamp.incrementAndGet();
+            _cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Returns the number of sessions currently cached.
+     */
+    public long size ()
+    {
+        return _cache.size();
+    }
+
+    /**
+     * Returns the hit, miss and eviction counts accumulated since this cache was created.
+     */
+    public CacheStats getStats ()
+    {
+        return _cache.stats();
+    }
+
+    @Override // from Object
+    public String toString ()
+    {
+        CacheStats stats = getStats();
+        return "[size=" + size() + ", hits=" + stats.hitCount() + ", misses=" + stats.missCount() +
+            ", evictions=" + stats.evictionCount() + "]";
+    }
+
+    /** A cached session. */
+    protected static class Entry
+    {
+        /** The time at which the session expires. */
+        public final long expires;
+
+        /** A snapshot of the user authenticated in the session. */
+        public final OOOUserRecord record;
+
+        public Entry (long expires, OOOUserRecord record) {
+            this.expires = expires;
+            this.record = record;
+        }
+    }
+
+    /** Our cached sessions, keyed by authcode. */
+    protected final Cache<String, Entry> _cache;
+
+    /** The authcodes of cached sessions, keyed by userId. */
+    protected final SetMultimap<Integer, String> _byUser = HashMultimap.create();
+
+    /** Incremented on every invalidation, used to avoid caching stale loads. */
+    protected final AtomicLong _stamp = new AtomicLong();
+}
@@ -0,0 +1,178 @@
+//
+// $Id$
+
+package com.threerings.user.depot;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.samskivert.depot.DatabaseException;
+import com.samskivert.util.Interval;
+import com.samskivert.util.RunQueue;
+
+import static com.threerings.user.Log.log;
+
+/**
+ * Coalesces session expiry refreshes. Session expiry is stored with day granularity, so most
+ * refreshes would write the date that is already stored. This remembers the last expiry written
+ * for each session, drops refreshes that would not change it and writes the rest periodically in
+ * batches.
+ *
+ * <p> A refresh is only deferred when the session is known to exist and its stored expiry is
+ * after today, so a deferred write can never cause a valid session to be treated as expired or
+ * pruned in the meantime.
+ */
+public class SessionRefresher
+{
+    /**
+     * Creates a refresher that will flush pending refreshes every {@code flushInterval}
+     * milliseconds.
+     *
+     * @param flushQueue the run queue on which to flush, or null to flush on the interval thread.
+     */
+    public SessionRefresher (DepotUserRepository repo, RunQueue flushQueue, long flushInterval)
+    {
+        _repo = repo;
+        _flusher = new Interval(flushQueue == null ? Interval.RUN_DIRECT : flushQueue) {
+            @Override public void expired () {
+                flush();
+            }
+        };
+        _flusher.schedule(flushInterval, true);
+    }
+
+    /**
+     * Notes a request to refresh the specified session.
+     *
+     * @return true if the refresh was redundant or has been queued, false if the session is not
+     * known to us and must be written immediately (followed by a call to {@link #noteWritten}).
+     */
+    public boolean noteRefresh (String authcode, Date expires)
+    {
+        Entry entry = _known.getIfPresent(authcode);
+        if (entry == null || System.currentTimeMillis() - entry.verified > VERIFY_INTERVAL) {
+            return false;
+        }
+
+        LocalDate day = expires.toLocalDate();
+        synchronized (entry) {
+            if (entry.day.equals(day)) {
+                return true;
+            }
+            if (!entry.day.isAfter(LocalDate.now())) {
+                return false;
+            }
+            entry.day = day;
+        }
+        synchronized (this) {
+            _pending.put(authcode, day);
+        }
+        return true;
+    }
+
+    /**
+     * Notes that the specified session was just written to the database with the supplied expiry.
+     */
+    public void noteWritten (String authcode, Date expires)
+    {
+        _known.put(authcode, new Entry(expires.toLocalDate()));
+    }
+
+    /**
+     * Forgets everything we know about the specified session. Should be called when the session
+     * is deleted.
+     */
+    public void forget (String authcode)
+    {
+        _known.invalidate(authcode);
+        synchronized (this) {
+            _pending.remove(authcode);
+        }
+    }
+
+    /**
+     * Writes all pending refreshes to the database.
+     */
+    public void flush ()
+    {
+        Map<String, LocalDate> pending;
+        synchronized (this) {
+            if (_pending.isEmpty()) {
+                return;
+            }
+            pending = _pending;
+            _pending = Maps.newHashMap();
+        }
+
+        // group the sessions by expiry day so that we can update each group in one go
+        Map<LocalDate, List<String>> byDay = Maps.newHashMap();
+        for (Map.Entry<String, LocalDate> entry : pending.entrySet()) {
+            List<String> authcodes = byDay.get(entry.getValue());
+            if (authcodes == null) {
+                byDay.put(entry.getValue(), authcodes = Lists.newArrayList());
+            }
+            authcodes.add(entry.getKey());
+        }
+
+        for (Map.Entry<LocalDate, List<String>> entry : byDay.entrySet()) {
+            try {
+                _repo.updateSessionExpiries(entry.getValue(), Date.valueOf(entry.getKey()));
+            } catch (DatabaseException de) {
+                log.warning("Failed to flush session refreshes", "expires", entry.getKey(),
+                            "count", entry.getValue().size(), de);
+                // forget these sessions so that their next refresh is written immediately
+                _known.invalidateAll(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Stops our periodic flushing and writes any pending refreshes to the database.
+     */
+    public void shutdown ()
+    {
+        _flusher.cancel();
+        flush();
+    }
+
+    /** What we know about a session. */
+    protected static class Entry
+    {
+        /** The day on which the session expires (possibly not yet written). */
+        public LocalDate day;
+
+        /** When we last confirmed that the session exists. */
+        public final long verified = System.currentTimeMillis();
+
+        public Entry (LocalDate day) {
+            this.day = day;
+        }
+    }
+
+    /** The repository to which we write. */
+    protected DepotUserRepository _repo;
+
+    /** Flushes our pending refreshes. */
+    protected Interval _flusher;
+
+    /** The sessions known to exist, along with their expiry. */
+    protected Cache<String, Entry> _known = CacheBuilder.newBuilder()
+        .maximumSize(MAX_KNOWN_SESSIONS).expireAfterAccess(1, TimeUnit.DAYS).build();
+
+    /** Refreshes that have not yet been written. */
+    protected Map<String, LocalDate> _pending = Maps.newHashMap();
+
+    /** How often we go back to the database to confirm that a session still exists. */
+    protected static final long VERIFY_INTERVAL = 60 * 60 * 1000L;
+
+    /** The maximum number of sessions for which we track expiry. */
+    protected static final int MAX_KNOWN_SESSIONS = 100000;
+}
@@ -0,0 +1,251 @@
+//
+// $Id$
+
+package com.threerings.user.depot;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A set of user ids, stored as a bitmap split into chunks of 65536 ids. Chunks with no members
+ * are not allocated, so a bitmap costs at most eight kilobytes per range of ids in which it has
+ * members, and sparse bitmaps (of a small site's users, say) cost little. Not thread safe.
+ */
+public class UserBitmap
+{
+    /**
+     * Creates an empty bitmap.
+     */
+    public UserBitmap ()
+    {
+    }
+
+    /**
+     * Creates a bitmap with the same members as the supplied bitmap.
+     */
+    public UserBitmap (UserBitmap other)
+    {
+        _chunks = new long[other._chunks.length][];
+        for (int ii = 0; ii < _chunks.length; ii++) {
+            if (other._chunks[ii] != null) {
+                _chunks[ii] = other._chunks[ii].clone();
+            }
+        }
+    }
+
+    /**
+     * Adds the specified user to this bitmap.
+     *
+     * @return true if the user was added, false if they were already present.
+     */
+    public boolean add (int userId)
+    {
+        if (userId < 0) {
+            throw new IllegalArgumentException("Negative user id " + userId);
+        }
+        int cidx = userId >>> CHUNK_BITS;
+        if (cidx >= _chunks.length) {
+            _chunks = Arrays.copyOf(_chunks, cidx + 1);
+        }
+        long[] chunk = _chunks[cidx];
+        if (chunk == null) {
+            _chunks[cidx] = chunk = new long[CHUNK_WORDS];
+        }
+        int widx = (userId & CHUNK_MASK) >>> 6;
+        long bit = 1L << userId, word = chunk[widx];
+        chunk[widx] = word | bit;
+        return (word & bit) == 0;
+    }
+
+    /**
+     * Removes the specified user from this bitmap.
+     *
+     * @return true if the user was removed, false if they were not present.
+     */
+    public boolean remove (int userId)
+    {
+        if (!contains(userId)) {
+            return false;
+        }
+        int cidx = userId >>> CHUNK_BITS;
+        long[] chunk = _chunks[cidx];
+        chunk[(userId & CHUNK_MASK) >>> 6] &= ~(1L << userId);
+        if (isEmpty(chunk)) {
+            _chunks[cidx] = null;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the specified user is in this bitmap.
+     */
+    public boolean contains (int userId)
+    {
+        int cidx = userId >>> CHUNK_BITS;
+        if (userId < 0 || cidx >= _chunks.length || _chunks[cidx] == null) {
+            return false;
+        }
+        return (_chunks[cidx][(userId & CHUNK_MASK) >>> 6] & (1L << userId)) != 0;
+    }
+
+    /**
+     * Returns the number of users in this bitmap.
+     */
+    public int size ()
+    {
+        int size = 0;
+        for (long[] chunk : _chunks) {
+            if (chunk != null) {
+                for (long word : chunk) {
+                    size += Long.bitCount(word);
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns true if this bitmap has no members.
+     */
+    public boolean isEmpty ()
+    {
+        for (long[] chunk : _chunks) {
+            if (chunk != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes from this bitmap all users that are not in the supplied bitmap.
+     *
+     * @return this bitmap, for chaining.
+     */
+    public UserBitmap and (UserBitmap other)
+    {
+        for (int ii = 0; ii < _chunks.length; ii++) {
+            long[] chunk = _chunks[ii];
+            if (chunk == null) {
+                continue;
+            }
+            long[] ochunk = (ii < other._chunks.length) ? other._chunks[ii] : null;
+            if (ochunk == null) {
+                _chunks[ii] = null;
+                continue;
+            }
+            for (int ww = 0; ww < CHUNK_WORDS; ww++) {
+                chunk[ww] &= ochunk[ww];
+            }
+            if (isEmpty(chunk)) {
+                _chunks[ii] = null;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Adds to this bitmap all users in the supplied bitmap.
+     *
+     * @return this bitmap, for chaining.
+     */
+    public UserBitmap or (UserBitmap other)
+    {
+        if (other._chunks.length > _chunks.length) {
+            _chunks = Arrays.copyOf(_chunks, other._chunks.length);
+        }
+        for (int ii = 0; ii < other._chunks.length; ii++) {
+            long[] ochunk = other._chunks[ii];
+            if (ochunk == null) {
+                continue;
+            }
+            long[] chunk = _chunks[ii];
+            if (chunk == null) {
+                _chunks[ii] = ochunk.clone();
+                continue;
+            }
+            for (int ww = 0; ww < CHUNK_WORDS; ww++) {
+                chunk[ww] |= ochunk[ww];
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Removes from this bitmap all users in the supplied bitmap.
+     *
+     * @return this bitmap, for chaining.
+     */
+    public UserBitmap andNot (UserBitmap other)
+    {
+        for (int ii = 0, ll = Math.min(_chunks.length, other._chunks.length); ii < ll; ii++) {
+            long[] chunk = _chunks[ii], ochunk = other._chunks[ii];
+            if (chunk == null || ochunk == null) {
+                continue;
+            }
+            for (int ww = 0; ww < CHUNK_WORDS; ww++) {
+                chunk[ww] &= ~ochunk[ww];
+            }
+            if (isEmpty(chunk)) {
+                _chunks[ii] = null;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Passes each user in this bitmap to the supplied consumer, in ascending order.
+     */
+    public void forEach (IntConsumer consumer)
+    {
+        for (int ii = 0; ii < _chunks.length; ii++) {
+            long[] chunk = _chunks[ii];
+            if (chunk == null) {
+                continue;
+            }
+            for (int ww = 0; ww < CHUNK_WORDS; ww++) {
+                for (long word = chunk[ww]; word != 0; word &= word - 1) {
+                    consumer.accept((ii << CHUNK_BITS) | (ww << 6) |
+                                    Long.numberOfTrailingZeros(word));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the users in this bitmap, in ascending order.
+     */
+    public int[] toIntArray ()
+    {
+        final int[] userIds = new int[size()];
+        forEach(new IntConsumer() {
+            public void accept (int userId) {
+                userIds[_count++] = userId;
+            }
+            protected int _count;
+        });
+        return userIds;
+    }
+
+    protected static boolean isEmpty (long[] chunk)
+    {
+        for (long word : chunk) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Our chunks, indexed by the high bits of the user ids they contain. */
+    protected long[][] _chunks = new long[0][];
+
+    /** The number of low bits of a user id that index into its chunk. */
+    protected static final int CHUNK_BITS = 16;
+
+    /** Masks the low bits of a user id that index into its chunk. */
+    protected static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+    /** The number of words in a chunk. */
+    protected static final int CHUNK_WORDS = (1 << CHUNK_BITS) / Long.SIZE;
+}
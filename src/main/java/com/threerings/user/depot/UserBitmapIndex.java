@@ -0,0 +1,398 @@
+//
+// $Id$
+
+package com.threerings.user.depot;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.depot.DatabaseException;
+import com.samskivert.util.HashIntMap;
+import com.samskivert.util.Interval;
+import com.samskivert.util.RunQueue;
+
+import static com.threerings.user.Log.log;
+
+/**
+ * Keeps in-memory bitmaps of the ids of all (not deleted) users, by flag bit, by Yohoho billing
+ * status and by site, so that marketing segments (such as Yohoho subscribers who have never
+ * bought coins) can be counted and listed without scanning the user table. For example:
+ *
+ * <pre>
+ * int count = index.segment().withStatus(OOOUser.SUBSCRIBER_STATE)
+ *     .withoutFlags(OOOUser.HAS_BOUGHT_COINS_FLAG).count();
+ * </pre>
+ *
+ * <p> The bitmaps are built by a scan of the user table and kept current as users are created,
+ * deleted or have their flags or status changed through this server's repository. Changes made
+ * by other servers are picked up by the periodic rebuild.
+ */
+public class UserBitmapIndex
+{
+    /** Selects the users that match all of a set of criteria. */
+    public class Segment
+    {
+        /**
+         * Limits this segment to users with all of the supplied flags.
+         */
+        public Segment withFlags (int mask)
+        {
+            _withFlags |= mask;
+            return this;
+        }
+
+        /**
+         * Limits this segment to users with none of the supplied flags.
+         */
+        public Segment withoutFlags (int mask)
+        {
+            _withoutFlags |= mask;
+            return this;
+        }
+
+        /**
+         * Limits this segment to users with any of the supplied Yohoho billing statuses.
+         */
+        public Segment withStatus (byte... statuses)
+        {
+            _statuses = statuses;
+            return this;
+        }
+
+        /**
+         * Limits this segment to users on any of the supplied sites.
+         */
+        public Segment onSites (int... siteIds)
+        {
+            _siteIds = siteIds;
+            return this;
+        }
+
+        /**
+         * Returns the users in this segment.
+         */
+        public UserBitmap select ()
+        {
+            synchronized (UserBitmapIndex.this) {
+                return _bitmaps.select(this);
+            }
+        }
+
+        /**
+         * Returns the number of users in this segment.
+         */
+        public int count ()
+        {
+            return select().size();
+        }
+
+        protected int _withFlags, _withoutFlags;
+        protected byte[] _statuses;
+        protected int[] _siteIds;
+    }
+
+    /**
+     * Creates an index that scans the user table via the supplied repository and rebuilds itself
+     * every {@code rebuildInterval} milliseconds. The caller must {@link #rebuild} the index
+     * before it is installed in the repository.
+     *
+     * @param rebuildQueue the run queue on which to rebuild, or null to rebuild on the interval
+     * thread.
+     */
+    public UserBitmapIndex (DepotUserRepository repo, RunQueue rebuildQueue, long rebuildInterval)
+    {
+        _repo = repo;
+        _rebuilder = new Interval(rebuildQueue == null ? Interval.RUN_DIRECT : rebuildQueue) {
+            @Override public void expired () {
+                try {
+                    rebuild();
+                } catch (DatabaseException de) {
+                    log.warning("Failed to rebuild user bitmap index", de);
+                }
+            }
+        };
+        _rebuilder.schedule(rebuildInterval, true);
+    }
+
+    /**
+     * Returns a new, unrestricted segment of all users.
+     */
+    public Segment segment ()
+    {
+        return new Segment();
+    }
+
+    /**
+     * Returns the number of users in the index.
+     */
+    public synchronized int size ()
+    {
+        return _bitmaps.users.size();
+    }
+
+    /**
+     * Notes the flags, Yohoho billing status and site of the specified user, who has been created
+     * or updated.
+     */
+    public synchronized void noteUser (int userId, int flags, byte yohoho, int siteId)
+    {
+        Change change = new Change(userId, flags, yohoho, siteId);
+        change.apply(_bitmaps);
+        if (_rebuildChanges != null) {
+            _rebuildChanges.add(change);
+        }
+    }
+
+    /**
+     * Notes that the supplied flags have been set and cleared for the specified user. Users not
+     * in the index are ignored.
+     */
+    public synchronized void noteFlags (int userId, int setMask, int clearMask)
+    {
+        Change change = new Change(userId, setMask, clearMask);
+        change.apply(_bitmaps);
+        if (_rebuildChanges != null) {
+            _rebuildChanges.add(change);
+        }
+    }
+
+    /**
+     * Notes that the specified user has been deleted.
+     */
+    public synchronized void noteDeleted (int userId)
+    {
+        Change change = new Change(userId);
+        change.apply(_bitmaps);
+        if (_rebuildChanges != null) {
+            _rebuildChanges.add(change);
+        }
+    }
+
+    /**
+     * Rebuilds the index from a scan of the user table. Changes noted while the rebuild is in
+     * progress are retained.
+     */
+    public void rebuild ()
+        throws DatabaseException
+    {
+        synchronized (_rebuildLock) {
+            doRebuild();
+        }
+    }
+
+    protected void doRebuild ()
+        throws DatabaseException
+    {
+        // changes noted from here on are applied both to the current bitmaps and the new ones
+        synchronized (this) {
+            _rebuildChanges = Lists.newArrayList();
+        }
+
+        try {
+            final Bitmaps bitmaps = new Bitmaps();
+            DepotUserRepository.UserStatusConsumer consumer =
+                new DepotUserRepository.UserStatusConsumer() {
+                public void accept (int userId, int flags, byte yohoho, int siteId) {
+                    bitmaps.addUser(userId, flags, yohoho, siteId);
+                }
+            };
+            int afterId = 0;
+            while (true) {
+                int lastId = _repo.scanUserStatus(afterId, SCAN_PAGE_SIZE, consumer);
+                if (lastId == afterId) {
+                    break;
+                }
+                afterId = lastId;
+            }
+
+            synchronized (this) {
+                for (Change change : _rebuildChanges) {
+                    change.apply(bitmaps);
+                }
+                _bitmaps = bitmaps;
+            }
+
+        } finally {
+            synchronized (this) {
+                _rebuildChanges = null;
+            }
+        }
+    }
+
+    /**
+     * Stops periodically rebuilding the index.
+     */
+    public void shutdown ()
+    {
+        _rebuilder.cancel();
+    }
+
+    /** A set of bitmaps of all of the users. */
+    protected static class Bitmaps
+    {
+        /** All of the indexed users. */
+        public final UserBitmap users = new UserBitmap();
+
+        /** The users with each flag bit set. */
+        public final UserBitmap[] flags = new UserBitmap[Integer.SIZE];
+
+        /** The users with each Yohoho billing status. */
+        public final HashIntMap<UserBitmap> statuses = new HashIntMap<UserBitmap>();
+
+        /** The users on each site. */
+        public final HashIntMap<UserBitmap> sites = new HashIntMap<UserBitmap>();
+
+        public Bitmaps () {
+            for (int ii = 0; ii < flags.length; ii++) {
+                flags[ii] = new UserBitmap();
+            }
+        }
+
+        public void addUser (int userId, int flags, byte yohoho, int siteId) {
+            users.add(userId);
+            setFlags(userId, flags, ~flags);
+            getBitmap(statuses, yohoho).add(userId);
+            getBitmap(sites, siteId).add(userId);
+        }
+
+        public void setUser (int userId, int flags, byte yohoho, int siteId) {
+            removeUser(userId);
+            addUser(userId, flags, yohoho, siteId);
+        }
+
+        public void setFlags (int userId, int setMask, int clearMask) {
+            for (int ii = 0; ii < this.flags.length; ii++) {
+                int bit = 1 << ii;
+                if ((setMask & bit) != 0) {
+                    this.flags[ii].add(userId);
+                } else if ((clearMask & bit) != 0) {
+                    this.flags[ii].remove(userId);
+                }
+            }
+        }
+
+        public void removeUser (int userId) {
+            if (users.remove(userId)) {
+                setFlags(userId, 0, -1);
+                for (UserBitmap bitmap : statuses.values()) {
+                    bitmap.remove(userId);
+                }
+                for (UserBitmap bitmap : sites.values()) {
+                    bitmap.remove(userId);
+                }
+            }
+        }
+
+        public UserBitmap select (Segment seg) {
+            UserBitmap result = new UserBitmap(users);
+            for (int ii = 0; ii < flags.length; ii++) {
+                int bit = 1 << ii;
+                if ((seg._withFlags & bit) != 0) {
+                    result.and(flags[ii]);
+                } else if ((seg._withoutFlags & bit) != 0) {
+                    result.andNot(flags[ii]);
+                }
+            }
+            if (seg._statuses != null) {
+                UserBitmap matched = new UserBitmap();
+                for (byte status : seg._statuses) {
+                    UserBitmap bitmap = statuses.get(status);
+                    if (bitmap != null) {
+                        matched.or(bitmap);
+                    }
+                }
+                result.and(matched);
+            }
+            if (seg._siteIds != null) {
+                UserBitmap matched = new UserBitmap();
+                for (int siteId : seg._siteIds) {
+                    UserBitmap bitmap = sites.get(siteId);
+                    if (bitmap != null) {
+                        matched.or(bitmap);
+                    }
+                }
+                result.and(matched);
+            }
+            return result;
+        }
+
+        protected static UserBitmap getBitmap (HashIntMap<UserBitmap> bitmaps, int key) {
+            UserBitmap bitmap = bitmaps.get(key);
+            if (bitmap == null) {
+                bitmaps.put(key, bitmap = new UserBitmap());
+            }
+            return bitmap;
+        }
+    }
+
+    /** A change noted while a rebuild is in progress, to be applied to the rebuilt bitmaps. */
+    protected static class Change
+    {
+        /** Notes a created or updated user. */
+        public Change (int userId, int flags, byte yohoho, int siteId) {
+            this(SET_USER, userId, flags, 0, yohoho, siteId);
+        }
+
+        /** Notes changed flags. */
+        public Change (int userId, int setMask, int clearMask) {
+            this(SET_FLAGS, userId, setMask, clearMask, (byte)0, 0);
+        }
+
+        /** Notes a deleted user. */
+        public Change (int userId) {
+            this(DELETE_USER, userId, 0, 0, (byte)0, 0);
+        }
+
+        public void apply (Bitmaps bitmaps) {
+            switch (_type) {
+            case SET_USER:
+                bitmaps.setUser(_userId, _setMask, _yohoho, _siteId);
+                break;
+            case SET_FLAGS:
+                if (bitmaps.users.contains(_userId)) {
+                    bitmaps.setFlags(_userId, _setMask, _clearMask);
+                }
+                break;
+            case DELETE_USER:
+                bitmaps.removeUser(_userId);
+                break;
+            }
+        }
+
+        protected Change (int type, int userId, int setMask, int clearMask, byte yohoho,
+                          int siteId) {
+            _type = type;
+            _userId = userId;
+            _setMask = setMask;
+            _clearMask = clearMask;
+            _yohoho = yohoho;
+            _siteId = siteId;
+        }
+
+        protected final int _type, _userId, _setMask, _clearMask, _siteId;
+        protected final byte _yohoho;
+
+        protected static final int SET_USER = 0;
+        protected static final int SET_FLAGS = 1;
+        protected static final int DELETE_USER = 2;
+    }
+
+    /** The repository via which we scan the user table. */
+    protected DepotUserRepository _repo;
+
+    /** Periodically rebuilds our bitmaps. */
+    protected Interval _rebuilder;
+
+    /** Our current bitmaps. */
+    protected Bitmaps _bitmaps = new Bitmaps();
+
+    /** Prevents rebuilds from overlapping. */
+    protected Object _rebuildLock = new Object();
+
+    /** Changes noted while a rebuild is in progress, or null. */
+    protected List<Change> _rebuildChanges;
+
+    /** The number of users loaded per query when rebuilding. */
+    protected static final int SCAN_PAGE_SIZE = 50000;
+}
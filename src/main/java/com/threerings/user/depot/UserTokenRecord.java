@@ -0,0 +1,71 @@
+//
+// $Id$
+
+package com.threerings.user.depot;
+
+import com.samskivert.depot.Key;
+import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.annotation.Column;
+import com.samskivert.depot.annotation.Entity;
+import com.samskivert.depot.annotation.Id;
+import com.samskivert.depot.annotation.Index;
+import com.samskivert.depot.expression.ColumnExp;
+
+/**
+ * Records that a user holds a particular token, so that users can be looked up by token. Mirrors
+ * the tokens stored in each user's {@link OOOUserRecord} and is maintained whenever those are
+ * written.
+ */
+@Entity(name="USER_TOKENS", indices={ @Index(name="ixTokenUser") })
+public class UserTokenRecord extends PersistentRecord
+{
+    // AUTO-GENERATED: FIELDS START
+    public static final Class<UserTokenRecord> _R = UserTokenRecord.class;
+    public static final ColumnExp<Integer> USER_ID = colexp(_R, "userId");
+    public static final ColumnExp<Byte> TOKEN = colexp(_R, "token");
+    // AUTO-GENERATED: FIELDS END
+
+    public static final int SCHEMA_VERSION = 1;
+
+    /** The id of the user in question. */
+    @Id @Column(name="USER_ID")
+    public int userId;
+
+    /** A token held by the user. */
+    @Id @Column(name="TOKEN")
+    public byte token;
+
+    /**
+     * Defines the index used to page through the users holding a token in order of user id.
+     */
+    public static ColumnExp<?>[] ixTokenUser ()
+    {
+        return new ColumnExp<?>[] { TOKEN, USER_ID };
+    }
+
+    /** Blank constructor for the unserialization business. */
+    public UserTokenRecord ()
+    {
+    }
+
+    /** A constructor that populates this record. */
+    public UserTokenRecord (int userId, byte token)
+    {
+        this.userId = userId;
+        this.token = token;
+    }
+
+    // AUTO-GENERATED: METHODS START
+    /**
+     * Create and return a primary {@link Key} to identify a {@link UserTokenRecord}
+     * with the supplied key values.
+     */
+    public static Key<UserTokenRecord> getKey (int userId, byte token)
+    {
+        return newKey(_R, userId, token);
+    }
+
+    /** Register the key fields in an order matching the getKey() factory. */
+    static { registerKeyFields(USER_ID, TOKEN); }
+    // AUTO-GENERATED: METHODS END
+}
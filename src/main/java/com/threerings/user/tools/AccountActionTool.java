@@ -39,7 +39,7 @@ public class AccountActionTool
                 }
 
             } else if (args[0].equals("prune")) {
-                repo.pruneActions();
+                System.out.println("Pruned " + repo.pruneActions() + " actions.");
 
             } else if (args[0].equals("add")) {
                 if (args.length != 3) {
@@ -0,0 +1,122 @@
+//
+// $Id$
+
+package com.threerings.user.tools;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.depot.PersistenceContext;
+import com.samskivert.depot.StaticConnectionProvider;
+import com.samskivert.util.Config;
+
+import com.threerings.user.depot.DepotUserRepository;
+
+/**
+ * Bans or unbans a batch of users on a site. The users are read one per line (as usernames or
+ * user ids) from a file or from standard input, and the result for each user is printed. Users
+ * who do not exist, or who are already banned (or unbanned), are reported as not updated.
+ */
+public class BanTool
+{
+    public static void main (String[] args)
+    {
+        if (args.length < 3 || args.length > 4) {
+            failWithUsage();
+        }
+
+        String command = args[0];
+        boolean ban = command.equals("ban");
+        boolean untaint = command.equals("unban_untaint");
+        if (!ban && !untaint && !command.equals("unban")) {
+            System.err.println("Unknown command: " + command);
+            failWithUsage();
+        }
+        boolean byId = args[2].equals("ids");
+        if (!byId && !args[2].equals("names")) {
+            failWithUsage();
+        }
+
+        Config config = new Config(UserTool.PROPS_NAME);
+        try {
+            int site = Integer.parseInt(args[1]);
+            List<String> users = readUsers((args.length > 3) ? args[3] : null);
+            DepotUserRepository repo = new DepotUserRepository(new PersistenceContext(
+                "userdb", new StaticConnectionProvider(config.getSubProperties("db")), null));
+
+            Map<?, Boolean> results;
+            if (byId) {
+                List<Integer> userIds = Lists.newArrayList();
+                for (String user : users) {
+                    userIds.add(Integer.parseInt(user));
+                }
+                results = ban ? repo.banUserIds(site, userIds) :
+                    repo.unbanUserIds(site, userIds, untaint);
+            } else {
+                results = ban ? repo.banUsers(site, users) :
+                    repo.unbanUsers(site, users, untaint);
+            }
+
+            int updated = 0;
+            for (Map.Entry<?, Boolean> entry : results.entrySet()) {
+                System.out.println(entry.getKey() + " " + (entry.getValue() ? "ok" : "not updated"));
+                if (entry.getValue()) {
+                    updated++;
+                }
+            }
+            System.out.println((ban ? "Banned " : "Unbanned ") + updated + " of " +
+                               results.size() + " users on site " + site + ".");
+
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Reads the non-blank lines of the specified file, or of standard input if it is null.
+     */
+    protected static List<String> readUsers (String file)
+        throws IOException
+    {
+        InputStream in = (file == null) ? System.in : new FileInputStream(file);
+        List<String> users = Lists.newArrayList();
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(in, StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0) {
+                    users.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return users;
+    }
+
+    protected static void failWithUsage ()
+    {
+        for (String usage : USAGE) {
+            System.err.println(usage);
+        }
+        System.exit(255);
+    }
+
+    protected static final String[] USAGE = {
+        "Usage: BanTool [ban|unban|unban_untaint] site_id [names|ids] [file]",
+        "  ban - bans the users and taints their machine idents",
+        "  unban - removes the users' bans",
+        "  unban_untaint - removes the users' bans and untaints their machine idents",
+        "  The users are read one per line from the file, or from standard input.",
+    };
+}
@@ -0,0 +1,184 @@
+//
+// $Id$
+
+package com.threerings.user.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.threerings.user.Crypto;
+
+/**
+ * Measures Argon2 hashing time across a grid of parameters on the current machine and recommends
+ * the strongest parameters that meet a target p99 login latency at a target login rate. Each grid
+ * point is measured with as many concurrent hashes as would fit in the memory budget (and the
+ * available processors), so the latencies reflect a busy server rather than an idle one.
+ *
+ * <p> The recommended parameters are printed as <code>hashing.*</code> configuration properties
+ * (see {@link Crypto#configure(java.util.Properties)}).
+ */
+public class HashCalibrationTool
+{
+    public static void main (String[] args)
+    {
+        if (args.length > 4) {
+            failWithUsage();
+        }
+
+        try {
+            long targetP99 = (args.length > 0) ? Long.parseLong(args[0]) : DEFAULT_TARGET_P99;
+            int targetRate = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_TARGET_RATE;
+            long budgetKB = 1024L * ((args.length > 2) ?
+                Long.parseLong(args[2]) : DEFAULT_MEMORY_BUDGET_MB);
+            int samples = (args.length > 3) ? Integer.parseInt(args[3]) : DEFAULT_SAMPLES;
+
+            System.out.println("Calibrating for p99 <= " + targetP99 + "ms at " + targetRate +
+                               " logins/sec with a " + (budgetKB / 1024) + "MB memory budget.");
+            System.out.println(
+                "iterations memoryKB parallelism concurrency   p50ms   p99ms  hashes/sec");
+
+            Result best = null;
+            for (int iterations : ITERATIONS) {
+                for (int memoryKB : MEMORY_KB) {
+                    for (int parallelism : PARALLELISM) {
+                        Result result = measure(
+                            iterations, memoryKB, parallelism, budgetKB, samples);
+                        boolean ok = result.p99 <= targetP99 && result.throughput >= targetRate;
+                        System.out.println(result + (ok ? "" : "  (misses target)"));
+                        if (ok && (best == null || result.isStrongerThan(best))) {
+                            best = result;
+                        }
+                    }
+                }
+            }
+
+            if (best == null) {
+                System.out.println("No parameters met the target; consider more hardware, a " +
+                                   "larger memory budget or a relaxed target.");
+            } else {
+                System.out.println("Recommended configuration:");
+                System.out.println("hashing.iterations = " + best.iterations);
+                System.out.println("hashing.memory_kb = " + best.memoryKB);
+                System.out.println("hashing.parallelism = " + best.parallelism);
+                System.out.println("hashing.concurrency = " + best.concurrency);
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    /** The measurements for a single set of parameters. */
+    protected static class Result
+    {
+        public int iterations, memoryKB, parallelism, concurrency;
+        public long p50, p99;
+        public double throughput;
+
+        /** Returns true if these parameters are more costly to attack than the supplied ones. */
+        public boolean isStrongerThan (Result other) {
+            long cost = (long)memoryKB * iterations;
+            long ocost = (long)other.memoryKB * other.iterations;
+            return (cost != ocost) ? cost > ocost : p99 < other.p99;
+        }
+
+        @Override // from Object
+        public String toString () {
+            return String.format("%10d %8d %11d %11d %7d %7d %11.1f", iterations, memoryKB,
+                                 parallelism, concurrency, p50, p99, throughput);
+        }
+    }
+
+    /**
+     * Hashes {@code samples} passwords on each of as many threads as the memory budget and
+     * processors allow and reports the resulting latencies and throughput.
+     */
+    protected static Result measure (final int iterations, final int memoryKB,
+                                      final int parallelism, long budgetKB, final int samples)
+        throws Exception
+    {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int concurrency = (int)Math.max(1, Math.min(cores / parallelism, budgetKB / memoryKB));
+        final char[] password = "calibration-password".toCharArray();
+
+        // warm up the native library and the JIT
+        for (int ii = 0; ii < WARMUP_HASHES; ii++) {
+            Crypto.hashPassword(password, iterations, memoryKB, parallelism);
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(concurrency);
+        try {
+            List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+            long start = System.nanoTime();
+            for (int ii = 0; ii < concurrency; ii++) {
+                futures.add(exec.submit(new Callable<long[]>() {
+                    public long[] call () {
+                        long[] times = new long[samples];
+                        for (int jj = 0; jj < samples; jj++) {
+                            long hstart = System.nanoTime();
+                            Crypto.hashPassword(password, iterations, memoryKB, parallelism);
+                            times[jj] = System.nanoTime() - hstart;
+                        }
+                        return times;
+                    }
+                }));
+            }
+
+            long[] times = new long[concurrency * samples];
+            for (int ii = 0; ii < concurrency; ii++) {
+                System.arraycopy(futures.get(ii).get(), 0, times, ii * samples, samples);
+            }
+            long elapsed = System.nanoTime() - start;
+            Arrays.sort(times);
+
+            Result result = new Result();
+            result.iterations = iterations;
+            result.memoryKB = memoryKB;
+            result.parallelism = parallelism;
+            result.concurrency = concurrency;
+            result.p50 = times[times.length / 2] / NANOS_PER_MILLI;
+            result.p99 = times[Math.min(times.length - 1, times.length * 99 / 100)] /
+                NANOS_PER_MILLI;
+            result.throughput = times.length * 1e9 / elapsed;
+            return result;
+
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    protected static void failWithUsage ()
+    {
+        for (String usage : USAGE) {
+            System.err.println(usage);
+        }
+        System.exit(255);
+    }
+
+    /** The Argon2 parameters that we measure. */
+    protected static final int[] ITERATIONS = { 1, 2, 3, 4 };
+    protected static final int[] MEMORY_KB = { 19456, 32768, 65536, 131072, 262144 };
+    protected static final int[] PARALLELISM = { 1, 2, 4 };
+
+    /** Our default targets and limits. */
+    protected static final long DEFAULT_TARGET_P99 = 250L;
+    protected static final int DEFAULT_TARGET_RATE = 20;
+    protected static final long DEFAULT_MEMORY_BUDGET_MB = 512L;
+    protected static final int DEFAULT_SAMPLES = 20;
+
+    /** The number of hashes we compute before measuring each set of parameters. */
+    protected static final int WARMUP_HASHES = 2;
+
+    protected static final long NANOS_PER_MILLI = 1000L * 1000L;
+
+    protected static final String[] USAGE = {
+        "Usage: HashCalibrationTool [target_p99_ms [target_logins_per_sec " +
+        "[memory_budget_mb [samples]]]]",
+        "  Defaults: 250ms, 20 logins/sec, 512MB, 20 samples per thread.",
+    };
+}
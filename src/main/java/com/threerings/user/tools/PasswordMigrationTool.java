@@ -0,0 +1,187 @@
+//
+// $Id$
+
+package com.threerings.user.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.depot.PersistenceContext;
+import com.samskivert.depot.StaticConnectionProvider;
+import com.samskivert.depot.util.Tuple2;
+import com.samskivert.util.Config;
+import com.samskivert.util.StringUtil;
+
+import com.threerings.user.Crypto;
+import com.threerings.user.depot.DepotUserRepository;
+
+/**
+ * Protects legacy (pre-Argon2) password hashes of users who may never log in again to have them
+ * upgraded, by wrapping each legacy hash in an Argon2 hash (see {@link Crypto#wrapLegacyHash}).
+ * Wrapped hashes verify against the original passwords and are upgraded to plain Argon2 hashes
+ * when their owners next log in.
+ *
+ * <p> The user table is walked in ascending user id order, a chunk at a time. Each chunk's
+ * hashes are wrapped in parallel across all cores and written with conditional updates, so a
+ * password changed in the meantime is left alone. After each chunk, the last user id processed is
+ * written to a checkpoint file from which a later run resumes. Writes are rate limited to protect
+ * the database.
+ *
+ * <p> The Argon2 parameters may be set via <code>hashing.*</code> system properties (see {@link
+ * Crypto#configure(java.util.Properties)}).
+ */
+public class PasswordMigrationTool
+{
+    public static void main (String[] args)
+    {
+        if (args.length < 1 || args.length > 4 || !args[0].equals("wrap")) {
+            failWithUsage();
+        }
+
+        File checkpoint = new File((args.length > 1) ? args[1] : DEFAULT_CHECKPOINT);
+        int maxRate = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_MAX_RATE;
+        int chunkSize = (args.length > 3) ? Integer.parseInt(args[3]) : DEFAULT_CHUNK_SIZE;
+
+        Config config = new Config(UserTool.PROPS_NAME);
+        ExecutorService exec = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors());
+        try {
+            Crypto.configure(System.getProperties());
+            DepotUserRepository repo = new DepotUserRepository(new PersistenceContext(
+                "userdb", new StaticConnectionProvider(config.getSubProperties("db")), null));
+            wrapLegacyHashes(repo, exec, checkpoint, maxRate, chunkSize);
+
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    protected static void wrapLegacyHashes (DepotUserRepository repo, ExecutorService exec,
+                                            File checkpoint, int maxRate, int chunkSize)
+        throws Exception
+    {
+        int cursor = readCheckpoint(checkpoint);
+        System.out.println("Wrapping legacy hashes for users after " + cursor + ".");
+
+        long start = System.currentTimeMillis();
+        int scanned = 0, wrapped = 0, conflicts = 0;
+        while (true) {
+            List<Tuple2<Integer, String>> users = repo.loadPasswordsAfter(cursor, chunkSize);
+            if (users.isEmpty()) {
+                break;
+            }
+
+            // wrap this chunk's legacy hashes in parallel
+            List<Tuple2<Integer, String>> legacy = Lists.newArrayList();
+            List<Future<String>> results = Lists.newArrayList();
+            for (final Tuple2<Integer, String> user : users) {
+                if (isLegacyHash(user.b)) {
+                    legacy.add(user);
+                    results.add(exec.submit(new Callable<String>() {
+                        public String call () {
+                            return Crypto.wrapLegacyHash(user.b);
+                        }
+                    }));
+                }
+            }
+
+            // write them out, unless the user's password has changed in the meantime
+            for (int ii = 0, ll = legacy.size(); ii < ll; ii++) {
+                Tuple2<Integer, String> user = legacy.get(ii);
+                if (repo.changePasswordIfUnchanged(user.a, user.b, results.get(ii).get())) {
+                    wrapped++;
+                } else {
+                    conflicts++;
+                }
+                throttle(start, wrapped + conflicts, maxRate);
+            }
+
+            scanned += users.size();
+            cursor = users.get(users.size() - 1).a;
+            writeCheckpoint(checkpoint, cursor);
+
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            System.out.println("Processed through user " + cursor + ": scanned " + scanned +
+                               ", wrapped " + wrapped + ", changed meanwhile " + conflicts +
+                               " (" + (wrapped * 1000L / elapsed) + " wraps/sec).");
+        }
+
+        System.out.println("Done: scanned " + scanned + ", wrapped " + wrapped +
+                           ", changed meanwhile " + conflicts + ".");
+    }
+
+    /**
+     * Returns true if the supplied hash is a legacy hash that should be wrapped.
+     */
+    protected static boolean isLegacyHash (String hash)
+    {
+        return !StringUtil.isBlank(hash) && !Crypto.isArgon2Hashed(hash) && !Crypto.isWrapped(hash);
+    }
+
+    /**
+     * Sleeps as needed to keep our write rate at or below {@code maxRate} per second.
+     */
+    protected static void throttle (long start, int writes, int maxRate)
+        throws InterruptedException
+    {
+        if (maxRate > 0) {
+            long due = start + writes * 1000L / maxRate;
+            long now = System.currentTimeMillis();
+            if (due > now) {
+                Thread.sleep(due - now);
+            }
+        }
+    }
+
+    protected static int readCheckpoint (File checkpoint)
+        throws IOException
+    {
+        if (!checkpoint.exists()) {
+            return 0;
+        }
+        String data = new String(Files.readAllBytes(checkpoint.toPath()), StandardCharsets.UTF_8);
+        return Integer.parseInt(data.trim());
+    }
+
+    protected static void writeCheckpoint (File checkpoint, int cursor)
+        throws IOException
+    {
+        // write to a temporary file and move it into place so that we never leave a partial file
+        File temp = new File(checkpoint.getPath() + ".tmp");
+        Files.write(temp.toPath(), String.valueOf(cursor).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    protected static void failWithUsage ()
+    {
+        for (String usage : USAGE) {
+            System.err.println(usage);
+        }
+        System.exit(255);
+    }
+
+    /** Our defaults. */
+    protected static final String DEFAULT_CHECKPOINT = "password_migration.checkpoint";
+    protected static final int DEFAULT_MAX_RATE = 200;
+    protected static final int DEFAULT_CHUNK_SIZE = 500;
+
+    protected static final String[] USAGE = {
+        "Usage: PasswordMigrationTool wrap [checkpoint_file [max_writes_per_sec [chunk_size]]]",
+        "  Defaults: " + DEFAULT_CHECKPOINT + ", " + DEFAULT_MAX_RATE + " writes/sec, " +
+        DEFAULT_CHUNK_SIZE + " users per chunk. A rate of 0 disables throttling.",
+    };
+}